@@ -0,0 +1,211 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.keys.FreenetURI;
+import freenet.pluginmanager.PluginRespirator;
+import freenet.support.Logger;
+
+/**
+ * Cache of fetched and indexed containers, keyed by container URI and
+ * archive type.
+ *
+ * The cache is bounded by the total size of the held containers and
+ * drops the least recently used ones first. Concurrent requests for the
+ * same container share one fetch. Only containers with an immutable key
+ * (CHK, SSK) are kept, others are fetched for the requesting caller only.
+ *
+ * A container handed out by {@link #acquireAsync} stays valid until the
+ * caller {@link CachedArchive#release()}s it, even if it gets evicted
+ * from the cache in the meantime.
+ */
+public class ArchiveCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ArchiveCache.class);
+	}
+
+	public static class CachedArchive {
+
+		private final ArchiveCache cache;
+		private final String key;
+		private final FetchHandle<CachedArchive> ready = new FetchHandle<CachedArchive>();
+		private ArchiveIndex index;
+		private int refs;
+		private boolean dropped;
+
+		private CachedArchive(ArchiveCache cache2, String key2) {
+			cache = cache2;
+			key = key2;
+		}
+
+		public ArchiveIndex getIndex() {
+			return index;
+		}
+
+		/**
+		 * Done with the container, do not use the index afterwards.
+		 */
+		public void release() {
+			cache.release(this);
+		}
+	}
+
+	private final long maxSize;
+	private final LinkedHashMap<String, CachedArchive> archives = new LinkedHashMap<String, CachedArchive>(16, 0.75f, true);
+	private long currentSize;
+
+	public ArchiveCache(long maxSize2) {
+		maxSize = maxSize2;
+	}
+
+	/**
+	 * Fetch a container, or take it from the cache. On success the
+	 * caller has to {@link CachedArchive#release()} the container.
+	 */
+	public CachedArchive acquire(PluginRespirator pr, FreenetURI uri, ARCHIVE_TYPE type) throws FetchException {
+		return acquireAsync(pr, uri, type, null).waitForCompletion();
+	}
+
+	public FetchHandle<CachedArchive> acquireAsync(PluginRespirator pr, FreenetURI uri, ARCHIVE_TYPE type, FetchCallback<CachedArchive> cb) {
+		String key = type.name() + ':' + uri.toString(false, false);
+		final CachedArchive archive;
+		boolean start = false;
+		synchronized (this) {
+			CachedArchive cached = KeyExplorerUtils.isImmutable(uri) ? archives.get(key) : null;
+			if (cached == null) {
+				archive = new CachedArchive(this, key);
+				if (KeyExplorerUtils.isImmutable(uri)) {
+					archives.put(key, archive);
+				} else {
+					archive.dropped = true;
+				}
+				start = true;
+			} else {
+				archive = cached;
+			}
+			archive.refs++;
+		}
+		FetchHandle<CachedArchive> handle = new FetchHandle<CachedArchive>(cb);
+		archive.ready.addCallback(handle);
+		if (start) {
+			if (logMINOR) Logger.minor(this, "Fetching container " + key);
+			try {
+				KeyExplorerUtils.archiveIndexGetAsync(pr, uri, type, new FetchCallback<ArchiveIndex>() {
+					@Override
+					public void onSuccess(ArchiveIndex result) {
+						completed(archive, result);
+						archive.ready.onSuccess(archive);
+					}
+
+					@Override
+					public void onFailure(FetchException e) {
+						failed(archive);
+						archive.ready.onFailure(e);
+					}
+				});
+			} catch (RuntimeException e) {
+				// do not leave a pending entry behind, later requests would wait on it forever
+				Logger.error(this, "Failed to start container fetch: " + e, e);
+				failed(archive);
+				archive.ready.onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, e));
+			}
+		}
+		return handle;
+	}
+
+	/**
+	 * Drop all containers. Containers still in use are freed once released.
+	 */
+	public void clear() {
+		List<ArchiveIndex> toFree = new ArrayList<ArchiveIndex>();
+		synchronized (this) {
+			for (CachedArchive archive : archives.values()) {
+				archive.dropped = true;
+				if (archive.index != null && archive.refs == 0) {
+					toFree.add(archive.index);
+				}
+			}
+			archives.clear();
+			currentSize = 0;
+		}
+		for (ArchiveIndex index : toFree) {
+			index.free();
+		}
+	}
+
+	private void completed(CachedArchive archive, ArchiveIndex index) {
+		List<ArchiveIndex> toFree;
+		synchronized (this) {
+			archive.index = index;
+			if (archive.dropped) {
+				return;
+			}
+			currentSize += index.getContainerSize();
+			toFree = trim();
+		}
+		for (ArchiveIndex i : toFree) {
+			i.free();
+		}
+	}
+
+	private synchronized void failed(CachedArchive archive) {
+		// do not cache failures, the next request will try again
+		if (archives.get(archive.key) == archive) {
+			archives.remove(archive.key);
+		}
+		archive.dropped = true;
+	}
+
+	private void release(CachedArchive archive) {
+		ArchiveIndex toFree = null;
+		synchronized (this) {
+			if (archive.refs <= 0) {
+				Logger.error(this, "Container released too often: " + archive.key, new Exception("debug"));
+				return;
+			}
+			archive.refs--;
+			if (archive.refs == 0 && archive.dropped && archive.index != null) {
+				toFree = archive.index;
+			}
+		}
+		if (toFree != null) {
+			toFree.free();
+		}
+	}
+
+	/**
+	 * Evict least recently used containers until the cache fits. Still
+	 * pending fetches are not evicted.
+	 * @return the indexes that are not in use anymore and need to be freed
+	 */
+	private List<ArchiveIndex> trim() {
+		List<ArchiveIndex> toFree = new ArrayList<ArchiveIndex>();
+		Iterator<CachedArchive> it = archives.values().iterator();
+		while (currentSize > maxSize && it.hasNext()) {
+			CachedArchive archive = it.next();
+			if (archive.index == null) {
+				continue;
+			}
+			it.remove();
+			archive.dropped = true;
+			currentSize -= archive.index.getContainerSize();
+			if (logMINOR) Logger.minor(this, "Evicting container " + archive.key);
+			if (archive.refs == 0) {
+				toFree.add(archive.index);
+			}
+		}
+		return toFree;
+	}
+}
@@ -0,0 +1,234 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.client.Metadata;
+import freenet.client.MetadataParseException;
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+
+/**
+ * Entry index of a container (archive) bucket.
+ *
+ * The index is built in one pass over the container, later lookups
+ * open the bucket at the recorded offset instead of scanning it again.
+ * The index owns the bucket, {@link #free()} frees it.
+ */
+public abstract class ArchiveIndex {
+
+	/** upper bound for the buffer allocated up front in {@link #getBytes(String)} */
+	private static final int MAX_PRESIZE = 64 * 1024;
+
+	protected static class Entry {
+		/** offset of the entry data inside the container */
+		final long offset;
+		/** stored length of the entry data */
+		final long length;
+
+		Entry(long offset2, long length2) {
+			offset = offset2;
+			length = length2;
+		}
+
+		/** @return the length of the entry once unpacked */
+		long size() {
+			return length;
+		}
+	}
+
+	protected final Bucket data;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	protected ArchiveIndex(Bucket data2) {
+		data = data2;
+	}
+
+	/**
+	 * Index a container. On success the index owns the bucket.
+	 */
+	public static ArchiveIndex build(Bucket data, ARCHIVE_TYPE type) throws IOException {
+		switch (type) {
+		case TAR:
+			return TarArchiveIndex.build(data);
+		case ZIP:
+			return ZipArchiveIndex.build(data);
+		default:
+			throw new IOException("Unsupported archive type: " + type);
+		}
+	}
+
+	protected void addEntry(String name, Entry entry) {
+		entries.put(name, entry);
+	}
+
+	protected Entry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * @return the entry names in container order
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	public int countEntries() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the unpacked size of the entry, -1 if there is no such entry
+	 */
+	public long getSize(String name) {
+		Entry entry = entries.get(name);
+		return (entry == null) ? -1 : entry.size();
+	}
+
+	/**
+	 * @return the packed size of the entry inside the container, -1 if there is no such entry
+	 */
+	public long getStoredSize(String name) {
+		Entry entry = entries.get(name);
+		return (entry == null) ? -1 : entry.length;
+	}
+
+	/**
+	 * @return the size of the container itself
+	 */
+	public long getContainerSize() {
+		return data.size();
+	}
+
+	/**
+	 * @return the unpacked data of an entry
+	 * @throws IOException if there is no such entry
+	 */
+	public InputStream getInputStream(String name) throws IOException {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			throw new IOException("No such entry in archive: " + name);
+		}
+		return openEntry(entry);
+	}
+
+	protected abstract InputStream openEntry(Entry entry) throws IOException;
+
+	public byte[] getBytes(String name) throws IOException {
+		InputStream is = getInputStream(name);
+		try {
+			byte[] buf = new byte[32768];
+			// the declared size comes from the container, do not trust it for more than a hint
+			ByteArrayOutputStream bos = new ByteArrayOutputStream((int) Math.max(0, Math.min(getSize(name), MAX_PRESIZE)));
+			int readBytes;
+			while ((readBytes = is.read(buf)) > 0) {
+				bos.write(buf, 0, readBytes);
+			}
+			return bos.toByteArray();
+		} finally {
+			Closer.close(is);
+		}
+	}
+
+	public Metadata getMetadata(String name) throws IOException, MetadataParseException, FetchException {
+		if (!contains(name)) {
+			throw new FetchException(FetchExceptionMode.INVALID_METADATA, "impossible? no metadata in archive ");
+		}
+		return Metadata.construct(getBytes(name));
+	}
+
+	public void free() {
+		data.free();
+	}
+
+	/**
+	 * Open the container at the given position. Skipping is a seek for
+	 * file backed buckets.
+	 */
+	protected InputStream openAt(long offset) throws IOException {
+		InputStream is = data.getInputStreamUnbuffered();
+		try {
+			skipFully(is, offset);
+		} catch (IOException e) {
+			Closer.close(is);
+			throw e;
+		}
+		return is;
+	}
+
+	protected static void skipFully(InputStream is, long count) throws IOException {
+		while (count > 0) {
+			long skipped = is.skip(count);
+			if (skipped <= 0) {
+				// skip() may give up early, read() tells us if it is really EOF
+				if (is.read() == -1) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+	/**
+	 * Reads at most length bytes from the wrapped stream.
+	 */
+	protected static class RangeInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		protected RangeInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			int b = in.read();
+			if (b >= 0) remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+			int r = in.read(b, off, (int) Math.min(len, remaining));
+			if (r > 0) remaining -= r;
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long s = in.skip(Math.min(n, remaining));
+			if (s > 0) remaining -= s;
+			return s;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
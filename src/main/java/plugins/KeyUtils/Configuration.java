@@ -7,6 +7,7 @@ import freenet.config.InvalidConfigValueException;
 import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.support.api.BooleanCallback;
+import freenet.support.api.IntCallback;
 import freenet.support.api.ShortCallback;
 
 public class Configuration {
@@ -71,15 +72,58 @@ public class Configuration {
 		}
 	}
 
+	static class DeepParallelismOption extends IntCallback {
+		@Override
+		public Integer get() {
+			return deepParallelism;
+		}
+
+		@Override
+		public void set(Integer val) throws InvalidConfigValueException,
+				NodeNeedRestartException {
+			if (val < 1 || val > MAX_DEEP_PARALLELISM) {
+				throw new InvalidConfigValueException("Must be between 1 and " + MAX_DEEP_PARALLELISM);
+			}
+			if (!val.equals(get())) {
+				deepParallelism = val;
+			}
+		}
+	}
+
+	static class ProbeRateOption extends IntCallback {
+		@Override
+		public Integer get() {
+			return probeRate;
+		}
+
+		@Override
+		public void set(Integer val) throws InvalidConfigValueException,
+				NodeNeedRestartException {
+			if (val < 1 || val > MAX_PROBE_RATE) {
+				throw new InvalidConfigValueException("Must be between 1 and " + MAX_PROBE_RATE);
+			}
+			if (!val.equals(get())) {
+				probeRate = val;
+			}
+		}
+	}
+
+	private static final int MAX_DEEP_PARALLELISM = 32;
+	private static final int MAX_PROBE_RATE = 1000;
+
 	private static boolean autoMF;
 	private static boolean deep;
 	private static boolean ml;
 	private static short hexWidth;
+	private static int deepParallelism;
+	private static int probeRate;
 
 	public static final String OPTION_AUTOMF = "autoMF";
 	public static final String OPTION_DEEP = "deep";
+	public static final String OPTION_DEEP_PARALLELISM = "deepParallelism";
 	public static final String OPTION_HEXWIDTH = "hexWidth";
 	public static final String OPTION_MULTILEVEL = "ml";
+	public static final String OPTION_PROBE_RATE = "probeRate";
 
 	static void initialize(SubConfig subconfig) {
 		short sortOrder = 0;
@@ -91,6 +135,10 @@ public class Configuration {
 		deep = subconfig.getBoolean(OPTION_MULTILEVEL);
 		subconfig.register(OPTION_HEXWIDTH, (short)32, sortOrder++, true, false, "Config.hexWidth", "Config.hexWidthLong", new HexWidthOption(), false);
 		hexWidth = subconfig.getShort(OPTION_HEXWIDTH);
+		subconfig.register(OPTION_DEEP_PARALLELISM, 4, sortOrder++, true, false, "Config.deepParallelism", "Config.deepParallelismLong", new DeepParallelismOption(), false);
+		deepParallelism = subconfig.getInt(OPTION_DEEP_PARALLELISM);
+		subconfig.register(OPTION_PROBE_RATE, 20, sortOrder++, true, false, "Config.probeRate", "Config.probeRateLong", new ProbeRateOption(), false);
+		probeRate = subconfig.getInt(OPTION_PROBE_RATE);
 	}
 
 	public static int getHexWidth() {
@@ -108,4 +156,12 @@ public class Configuration {
 	public static boolean getMultilevel() {
 		return ml;
 	}
+
+	public static int getDeepParallelism() {
+		return deepParallelism;
+	}
+
+	public static int getProbeRate() {
+		return probeRate;
+	}
 }
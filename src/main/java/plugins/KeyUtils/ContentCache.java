@@ -0,0 +1,274 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.client.FetchResult;
+import freenet.keys.FreenetURI;
+import freenet.pluginmanager.PluginRespirator;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.api.RandomAccessBuffer;
+import freenet.support.io.BucketTools;
+
+/**
+ * Cache of completely fetched files, keyed by URI or any other string
+ * that identifies the content.
+ *
+ * The files are held in random access buffers from the node's temp
+ * bucket factory, large ones are on disk. Readers fetch only the range
+ * they need. The cache is bounded by the total size of the files and
+ * drops the least recently used ones first; the most recently used file
+ * is kept even if it alone is bigger, so it can be paged through.
+ * Concurrent requests for the same file share one fetch. Only files with
+ * an immutable key (CHK, SSK) are kept, others are fetched for the
+ * requesting caller only.
+ *
+ * A file handed out by {@link #acquireAsync} stays valid until the caller
+ * {@link CachedContent#release()}s it, even if it gets evicted from the
+ * cache in the meantime.
+ */
+public class ContentCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ContentCache.class);
+	}
+
+	public static class CachedContent {
+
+		private final ContentCache cache;
+		private final String key;
+		private final FetchHandle<CachedContent> ready = new FetchHandle<CachedContent>();
+		private LockableRandomAccessBuffer data;
+		private String mimeType;
+		private int refs;
+		private boolean dropped;
+
+		private CachedContent(ContentCache cache2, String key2) {
+			cache = cache2;
+			key = key2;
+		}
+
+		/**
+		 * @return the file content, read only
+		 */
+		public RandomAccessBuffer getData() {
+			return data;
+		}
+
+		public long size() {
+			return data.size();
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		/**
+		 * Done with the file, do not use the data afterwards.
+		 */
+		public void release() {
+			cache.release(this);
+		}
+	}
+
+	private final long maxSize;
+	private final LinkedHashMap<String, CachedContent> files = new LinkedHashMap<String, CachedContent>(16, 0.75f, true);
+	private long currentSize;
+
+	/**
+	 * @param maxSize2 the total size of the cached files
+	 */
+	public ContentCache(long maxSize2) {
+		maxSize = maxSize2;
+	}
+
+	/**
+	 * Fetch a file, or take it from the cache. On success the caller has
+	 * to {@link CachedContent#release()} the file.
+	 * @param key identifies the content in the cache
+	 * @param uri decides if the content may be cached, see {@link KeyExplorerUtils#isImmutable(FreenetURI)}
+	 * @param loader fetches the content if it is not cached
+	 */
+	public CachedContent acquire(PluginRespirator pr, String key, FreenetURI uri, FetchQueue.Job<FetchResult> loader) throws FetchException {
+		return acquireAsync(pr, key, uri, loader, null).waitForCompletion();
+	}
+
+	public FetchHandle<CachedContent> acquireAsync(final PluginRespirator pr, String key, FreenetURI uri, FetchQueue.Job<FetchResult> loader, FetchCallback<CachedContent> cb) {
+		boolean cacheable = KeyExplorerUtils.isImmutable(uri);
+		final CachedContent content;
+		boolean start = false;
+		synchronized (this) {
+			CachedContent cached = cacheable ? files.get(key) : null;
+			if (cached == null) {
+				content = new CachedContent(this, key);
+				if (cacheable) {
+					files.put(key, content);
+				} else {
+					content.dropped = true;
+				}
+				start = true;
+			} else {
+				content = cached;
+			}
+			content.refs++;
+		}
+		FetchHandle<CachedContent> handle = new FetchHandle<CachedContent>(cb);
+		content.ready.addCallback(handle);
+		if (start) {
+			if (logMINOR) Logger.minor(this, "Fetching file " + key);
+			try {
+				loader.start(new FetchCallback<FetchResult>() {
+					@Override
+					public void onSuccess(FetchResult result) {
+						LockableRandomAccessBuffer data;
+						try {
+							data = toRandomAccessBuffer(pr, result.asBucket());
+						} catch (IOException e) {
+							failed(content);
+							content.ready.onFailure(new FetchException(FetchExceptionMode.BUCKET_ERROR, e));
+							return;
+						}
+						completed(content, data, result.getMimeType());
+						content.ready.onSuccess(content);
+					}
+
+					@Override
+					public void onFailure(FetchException e) {
+						failed(content);
+						content.ready.onFailure(e);
+					}
+				});
+			} catch (RuntimeException e) {
+				// do not leave a pending entry behind, later requests would wait on it forever
+				Logger.error(this, "Failed to start fetch: " + e, e);
+				failed(content);
+				content.ready.onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, e));
+			}
+		}
+		return handle;
+	}
+
+	/**
+	 * @return the data of the bucket as buffer, the bucket is not usable afterwards
+	 */
+	private static LockableRandomAccessBuffer toRandomAccessBuffer(PluginRespirator pr, Bucket bucket) throws IOException {
+		if (bucket instanceof RandomAccessBucket) {
+			try {
+				return ((RandomAccessBucket) bucket).toRandomAccessBuffer();
+			} catch (IOException e) {
+				bucket.free();
+				throw e;
+			}
+		}
+		RandomAccessBucket copy = pr.getNode().clientCore.tempBucketFactory.makeBucket(bucket.size());
+		try {
+			BucketTools.copy(bucket, copy);
+			return copy.toRandomAccessBuffer();
+		} catch (IOException e) {
+			copy.free();
+			throw e;
+		} finally {
+			bucket.free();
+		}
+	}
+
+	/**
+	 * Drop all files. Files still in use are freed once released.
+	 */
+	public void clear() {
+		List<RandomAccessBuffer> toFree = new ArrayList<RandomAccessBuffer>();
+		synchronized (this) {
+			for (CachedContent content : files.values()) {
+				content.dropped = true;
+				if (content.data != null && content.refs == 0) {
+					toFree.add(content.data);
+				}
+			}
+			files.clear();
+			currentSize = 0;
+		}
+		for (RandomAccessBuffer data : toFree) {
+			data.free();
+		}
+	}
+
+	private void completed(CachedContent content, LockableRandomAccessBuffer data, String mimeType) {
+		List<RandomAccessBuffer> toFree;
+		synchronized (this) {
+			content.data = data;
+			content.mimeType = mimeType;
+			if (content.dropped) {
+				return;
+			}
+			currentSize += data.size();
+			toFree = trim();
+		}
+		for (RandomAccessBuffer buffer : toFree) {
+			buffer.free();
+		}
+	}
+
+	private synchronized void failed(CachedContent content) {
+		// do not cache failures, the next request will try again
+		if (files.get(content.key) == content) {
+			files.remove(content.key);
+		}
+		content.dropped = true;
+	}
+
+	private void release(CachedContent content) {
+		RandomAccessBuffer toFree = null;
+		synchronized (this) {
+			if (content.refs <= 0) {
+				Logger.error(this, "File released too often: " + content.key, new Exception("debug"));
+				return;
+			}
+			content.refs--;
+			if (content.refs == 0 && content.dropped && content.data != null) {
+				toFree = content.data;
+			}
+		}
+		if (toFree != null) {
+			toFree.free();
+		}
+	}
+
+	/**
+	 * Evict least recently used files until the cache fits. Still pending
+	 * fetches and the most recently used file are not evicted.
+	 * @return the buffers that are not in use anymore and need to be freed
+	 */
+	private List<RandomAccessBuffer> trim() {
+		List<RandomAccessBuffer> toFree = new ArrayList<RandomAccessBuffer>();
+		Iterator<CachedContent> it = files.values().iterator();
+		int left = files.size();
+		while (currentSize > maxSize && left > 1 && it.hasNext()) {
+			CachedContent content = it.next();
+			left--;
+			if (content.data == null) {
+				continue;
+			}
+			it.remove();
+			content.dropped = true;
+			currentSize -= content.data.size();
+			if (logMINOR) Logger.minor(this, "Evicting file " + content.key);
+			if (content.refs == 0) {
+				toFree.add(content.data);
+			}
+		}
+		return toFree;
+	}
+}
@@ -6,17 +6,112 @@ package plugins.KeyUtils;
 import java.net.MalformedURLException;
 
 import freenet.client.FetchException;
+import freenet.client.Metadata;
 import freenet.keys.FreenetURI;
 import freenet.pluginmanager.PluginNotFoundException;
 import freenet.pluginmanager.PluginReplySender;
+import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
 import freenet.support.plugins.helpers1.AbstractFCPHandler;
 import freenet.support.plugins.helpers1.PluginContext;
 import freenet.support.plugins.helpers1.URISanitizer;
+import plugins.KeyUtils.ManifestPathResolver.Resolution;
 
 public class FCPHandler extends AbstractFCPHandler {
 
+	/**
+	 * Sends the reply once the fetch is done, so the FCP thread does not wait for it.
+	 */
+	private class GetReplyCallback implements FetchCallback<GetResult> {
+
+		private final PluginReplySender replysender;
+		private final String identifier;
+
+		GetReplyCallback(PluginReplySender replysender2, String identifier2) {
+			replysender = replysender2;
+			identifier = identifier2;
+		}
+
+		@Override
+		public void onSuccess(GetResult getResult) {
+			SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putSingle("Identifier", identifier);
+			sfs.put("IsMetadata", getResult.isMetaData());
+			sfs.putSingle("Status", "DataFound");
+			try {
+				replysender.send(sfs, getResult.getData());
+			} catch (PluginNotFoundException e) {
+				Logger.error(this, "Connection to request sender Lost.", e);
+			}
+		}
+
+		@Override
+		public void onFailure(FetchException e) {
+			try {
+				sendError(replysender, 6, identifier, "Get failed: " + e.toString());
+			} catch (PluginNotFoundException pnfe) {
+				Logger.error(this, "Connection to request sender Lost.", pnfe);
+			}
+		}
+	}
+
+	/**
+	 * Sends the description of a resolved path.
+	 */
+	private class ResolveReplyCallback implements FetchCallback<Resolution> {
+
+		private final PluginReplySender replysender;
+		private final String identifier;
+
+		ResolveReplyCallback(PluginReplySender replysender2, String identifier2) {
+			replysender = replysender2;
+			identifier = identifier2;
+		}
+
+		@Override
+		public void onSuccess(Resolution resolution) {
+			Metadata md = resolution.getMetadata();
+			SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putSingle("Identifier", identifier);
+			sfs.putSingle("Status", "PathResolved");
+			sfs.putSingle("Path", resolution.getPath());
+			sfs.put("NestedLevel", resolution.getNestedLevel());
+			sfs.putSingle("DocumentType", KeyExplorerUtils.documentType(md));
+			if (md.isSimpleManifest()) {
+				sfs.put("Documents", md.getDocuments().size());
+			}
+			if (!md.isNoMimeEnabled() && md.getMIMEType() != null) {
+				sfs.putSingle("MimeType", md.getMIMEType());
+			}
+			if (md.isCompressed()) {
+				sfs.put("Size", md.uncompressedDataLength());
+			} else if (md.isSplitfile()) {
+				sfs.put("Size", md.dataLength());
+			}
+			if (md.isArchiveInternalRedirect() || md.isArchiveMetadataRedirect()) {
+				sfs.putSingle("ArchiveInternalName", md.getArchiveInternalName());
+			}
+			if (md.getSingleTarget() != null) {
+				sfs.putSingle("Target", md.getSingleTarget().toString(false, false));
+			}
+			try {
+				replysender.send(sfs);
+			} catch (PluginNotFoundException e) {
+				Logger.error(this, "Connection to request sender Lost.", e);
+			}
+		}
+
+		@Override
+		public void onFailure(FetchException e) {
+			try {
+				sendError(replysender, 6, identifier, "Resolve failed: " + e.toString());
+			} catch (PluginNotFoundException pnfe) {
+				Logger.error(this, "Connection to request sender Lost.", pnfe);
+			}
+		}
+	}
+
 	FCPHandler(PluginContext pluginContext2) {
 		super(pluginContext2);
 	}
@@ -45,19 +140,11 @@ public class FCPHandler extends AbstractFCPHandler {
 			}
 			try {
 				FreenetURI furi = URISanitizer.sanitizeURI(uri, URISanitizer.Options.NOMETASTRINGS, URISanitizer.Options.SSKFORUSK);
-				GetResult getResult = KeyExplorerUtils.simpleGet(pluginContext.pluginRespirator, furi);
-				SimpleFieldSet sfs = new SimpleFieldSet(true);
-				sfs.putSingle("Identifier", identifier);
-				sfs.put("IsMetadata", getResult.isMetaData());
-				sfs.putSingle("Status", "DataFound");
-				replysender.send(sfs, getResult.getData());
+				KeyExplorerUtils.simpleGetAsync(pluginContext.pluginRespirator, furi, new GetReplyCallback(replysender, identifier));
 				return;
 			} catch (MalformedURLException e) {
 				sendError(replysender, 5, identifier, "Malformed freenet uri: " + e.getMessage());
 				return;
-			} catch (FetchException e) {
-				sendError(replysender, 6, identifier, "Get failed: " + e.toString());
-				return;
 			}
 		}
 
@@ -69,18 +156,41 @@ public class FCPHandler extends AbstractFCPHandler {
 			}
 			try {
 				FreenetURI furi = new FreenetURI(uri);
-				GetResult getResult = KeyExplorerUtils.simpleGet(pluginContext.pluginRespirator, furi);
-				SimpleFieldSet sfs = new SimpleFieldSet(true);
-				sfs.putSingle("Identifier", identifier);
-				sfs.put("IsMetadata", getResult.isMetaData());
-				sfs.putSingle("Status", "DataFound");
-				replysender.send(sfs, getResult.getData());
+				KeyExplorerUtils.simpleGetAsync(pluginContext.pluginRespirator, furi, new GetReplyCallback(replysender, identifier));
 				return;
 			} catch (MalformedURLException e) {
 				sendError(replysender, 5, identifier, "Malformed freenet uri: " + e.getMessage());
 				return;
-			} catch (FetchException e) {
-				sendError(replysender, 6, identifier, "Get failed: " + e.toString());
+			}
+		}
+		if ("ResolvePath".equals(command)) {
+			final String uri = params.get("URI");
+			if (uri == null || uri.trim().length() == 0) {
+				sendError(replysender, 4, identifier, "missing freenet uri");
+				return;
+			}
+			final String path = params.get("Path");
+			if (path == null) {
+				sendError(replysender, 4, identifier, "missing path");
+				return;
+			}
+			final FetchCallback<Resolution> reply = new ResolveReplyCallback(replysender, identifier);
+			try {
+				FreenetURI furi = URISanitizer.sanitizeURI(uri, URISanitizer.Options.NOMETASTRINGS, URISanitizer.Options.SSKFORUSK);
+				ManifestPathResolver.openAsync(pluginContext.pluginRespirator, furi, new FetchCallback<ManifestPathResolver>() {
+					@Override
+					public void onSuccess(ManifestPathResolver resolver) {
+						resolver.resolveAsync(path, reply);
+					}
+
+					@Override
+					public void onFailure(FetchException e) {
+						reply.onFailure(e);
+					}
+				});
+				return;
+			} catch (MalformedURLException e) {
+				sendError(replysender, 5, identifier, "Malformed freenet uri: " + e.getMessage());
 				return;
 			}
 		}
@@ -0,0 +1,18 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import freenet.client.FetchException;
+
+/**
+ * Completion callback for the asynchronous fetches in {@link KeyExplorerUtils}.
+ *
+ * Both methods are usually called on a node thread, do not block in there.
+ */
+public interface FetchCallback<T> {
+
+	void onSuccess(T result);
+
+	void onFailure(FetchException e);
+}
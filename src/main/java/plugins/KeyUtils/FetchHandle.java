@@ -0,0 +1,127 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.FetchException;
+import freenet.support.Logger;
+
+/**
+ * Completion handle for an asynchronous fetch.
+ *
+ * The first call to {@link #onSuccess(Object)} or {@link #onFailure(FetchException)}
+ * completes the handle, any later call is ignored. Callbacks added after
+ * completion are called immediately on the calling thread.
+ */
+public class FetchHandle<T> implements FetchCallback<T> {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(FetchHandle.class);
+	}
+
+	private final List<FetchCallback<T>> callbacks = new ArrayList<FetchCallback<T>>(1);
+	private boolean finished;
+	private T result;
+	private FetchException failure;
+
+	public FetchHandle() {
+	}
+
+	public FetchHandle(FetchCallback<T> cb) {
+		if (cb != null) {
+			callbacks.add(cb);
+		}
+	}
+
+	public void addCallback(FetchCallback<T> cb) {
+		synchronized (this) {
+			if (!finished) {
+				callbacks.add(cb);
+				return;
+			}
+		}
+		notifyCallback(cb);
+	}
+
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return the result, blocks until the fetch is finished
+	 * @throws FetchException if the fetch failed
+	 */
+	public synchronized T waitForCompletion() throws FetchException {
+		boolean interrupted = false;
+		while (!finished) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return result;
+	}
+
+	@Override
+	public void onSuccess(T res) {
+		if (!complete(res, null)) {
+			if (logMINOR) Logger.minor(this, "Ignoring late success, handle already finished");
+		}
+	}
+
+	@Override
+	public void onFailure(FetchException e) {
+		if (!complete(null, e)) {
+			if (logMINOR) Logger.minor(this, "Ignoring late failure, handle already finished", e);
+		}
+	}
+
+	private boolean complete(T res, FetchException e) {
+		List<FetchCallback<T>> toNotify;
+		synchronized (this) {
+			if (finished) {
+				return false;
+			}
+			finished = true;
+			result = res;
+			failure = e;
+			toNotify = new ArrayList<FetchCallback<T>>(callbacks);
+			callbacks.clear();
+			notifyAll();
+		}
+		for (FetchCallback<T> cb : toNotify) {
+			notifyCallback(cb);
+		}
+		return true;
+	}
+
+	private void notifyCallback(FetchCallback<T> cb) {
+		T res;
+		FetchException e;
+		synchronized (this) {
+			res = result;
+			e = failure;
+		}
+		try {
+			if (e != null) {
+				cb.onFailure(e);
+			} else {
+				cb.onSuccess(res);
+			}
+		} catch (Throwable t) {
+			Logger.error(this, "Callback failed: " + t, t);
+		}
+	}
+}
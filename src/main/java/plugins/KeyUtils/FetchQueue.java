@@ -0,0 +1,147 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.util.LinkedList;
+
+import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.support.Logger;
+
+/**
+ * Runs asynchronous fetches with a limit on how many of them are running
+ * at the same time. Jobs are started in submission order.
+ */
+public class FetchQueue {
+
+	public interface Job<T> {
+
+		/** start the fetch, the callback must be called exactly once */
+		void start(FetchCallback<T> cb);
+	}
+
+	private class QueuedJob<T> implements FetchCallback<T> {
+
+		private final Job<T> job;
+		private final FetchHandle<T> handle;
+
+		QueuedJob(Job<T> job2, FetchHandle<T> handle2) {
+			job = job2;
+			handle = handle2;
+		}
+
+		void start() {
+			try {
+				job.start(this);
+			} catch (Throwable t) {
+				Logger.error(this, "Failed to start fetch: " + t, t);
+				onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, t));
+			}
+		}
+
+		void cancel() {
+			handle.onFailure(new FetchException(FetchExceptionMode.CANCELLED));
+		}
+
+		@Override
+		public void onSuccess(T result) {
+			finished();
+			handle.onSuccess(result);
+		}
+
+		@Override
+		public void onFailure(FetchException e) {
+			finished();
+			handle.onFailure(e);
+		}
+	}
+
+	private final int maxRunning;
+	private final LinkedList<QueuedJob<?>> pending = new LinkedList<QueuedJob<?>>();
+	private int running;
+	private boolean cancelled;
+	/** true while a thread is starting queued jobs in {@link #finished()} */
+	private boolean draining;
+
+	/**
+	 * @param maxRunning2 the number of fetches allowed to run at the same time
+	 */
+	public FetchQueue(int maxRunning2) {
+		maxRunning = Math.max(1, maxRunning2);
+	}
+
+	public <T> FetchHandle<T> submit(Job<T> job) {
+		return submit(job, null);
+	}
+
+	/**
+	 * Queue a fetch, it is started as soon as a slot is free.
+	 */
+	public <T> FetchHandle<T> submit(Job<T> job, FetchCallback<T> cb) {
+		FetchHandle<T> handle = new FetchHandle<T>(cb);
+		QueuedJob<T> queued = new QueuedJob<T>(job, handle);
+		boolean start;
+		synchronized (this) {
+			if (cancelled) {
+				start = false;
+			} else if (running < maxRunning) {
+				running++;
+				start = true;
+			} else {
+				pending.add(queued);
+				return handle;
+			}
+		}
+		if (start) {
+			queued.start();
+		} else {
+			queued.cancel();
+		}
+		return handle;
+	}
+
+	/**
+	 * Fail all queued fetches that are not started yet and refuse new ones.
+	 * Running fetches are not affected.
+	 */
+	public void cancel() {
+		LinkedList<QueuedJob<?>> toCancel;
+		synchronized (this) {
+			cancelled = true;
+			toCancel = new LinkedList<QueuedJob<?>>(pending);
+			pending.clear();
+		}
+		for (QueuedJob<?> queued : toCancel) {
+			queued.cancel();
+		}
+	}
+
+	/**
+	 * Free the slot and start queued jobs. Jobs may complete inline (cache
+	 * hits, immediate failures), so they are started in a loop by one
+	 * thread at a time instead of recursing from their callbacks.
+	 */
+	private void finished() {
+		synchronized (this) {
+			running--;
+			if (draining) {
+				// the draining thread picks up the free slot
+				return;
+			}
+			draining = true;
+		}
+		while (true) {
+			QueuedJob<?> next;
+			synchronized (this) {
+				next = (cancelled || running >= maxRunning) ? null : pending.poll();
+				if (next == null) {
+					draining = false;
+					return;
+				}
+				running++;
+			}
+			next.start();
+		}
+	}
+}
@@ -3,42 +3,39 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.KeyUtils;
 
-import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
-import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Map.Entry;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-
-import org.apache.tools.tar.TarEntry;
-import org.apache.tools.tar.TarInputStream;
+import java.util.concurrent.CountDownLatch;
 
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.ClientMetadata;
 import freenet.client.FetchContext;
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.FetchResult;
-import freenet.client.FetchWaiter;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.Metadata;
 import freenet.client.MetadataParseException;
 import freenet.client.InsertContext.CompatibilityMode;
 import freenet.client.async.ClientContext;
+import freenet.client.async.ClientGetCallback;
 import freenet.client.async.ClientGetState;
-import freenet.client.async.ClientGetWorkerThread;
 import freenet.client.async.ClientGetter;
 import freenet.client.async.GetCompletionCallback;
 import freenet.client.async.SnoopBucket;
 import freenet.client.async.SplitFileFetcher;
 import freenet.client.async.StreamGenerator;
-import freenet.client.filter.UnsafeContentTypeException;
 import freenet.crypt.HashResult;
 import freenet.keys.FreenetURI;
 import freenet.node.RequestClient;
@@ -46,7 +43,6 @@ import freenet.node.RequestStarter;
 import freenet.pluginmanager.PluginRespirator;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
-import freenet.support.api.BucketFactory;
 import freenet.support.api.ManifestElement;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
@@ -54,6 +50,7 @@ import freenet.support.compress.DecompressorThreadManager;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import plugins.KeyUtils.ArchiveCache.CachedArchive;
 
 public class KeyExplorerUtils {
 
@@ -63,13 +60,41 @@ public class KeyExplorerUtils {
 	static {
 		Logger.registerClass(KeyExplorerUtils.class);
 	}
+
+	/** upper bound for the containers kept by {@link #archiveCache} */
+	private static final long ARCHIVE_CACHE_SIZE = 32 * 1024 * 1024;
+
+	private static final ArchiveCache archiveCache = new ArchiveCache(ARCHIVE_CACHE_SIZE);
+
+	/** upper bound for the estimated memory used by {@link #metadataCache} */
+	private static final long METADATA_CACHE_SIZE = 4 * 1024 * 1024;
+
+	private static final MetadataCache metadataCache = new MetadataCache(METADATA_CACHE_SIZE);
+
+	/** upper bound for the files kept by {@link #contentCache}, they are on disk mostly */
+	private static final long CONTENT_CACHE_SIZE = 256 * 1024 * 1024;
+
+	/** the largest file fetched completely for viewing */
+	private static final long MAX_CONTENT_SIZE = 1024 * 1024 * 1024;
+
+	private static final ContentCache contentCache = new ContentCache(CONTENT_CACHE_SIZE);
+
+	/**
+	 * upper bound for the decoded split downloads kept for resuming, on disk.
+	 * The most recent download is kept even if it is bigger.
+	 */
+	private static final long DOWNLOAD_CACHE_SIZE = 2L * 1024 * 1024 * 1024;
+
+	private static final ContentCache downloadCache = new ContentCache(DOWNLOAD_CACHE_SIZE);
+
+	private static final SingleFlight<GetResult> simpleGetFlights = new SingleFlight<GetResult>();
 	
 	private static class SnoopGetter implements SnoopBucket {
 
-		private GetResult result;
-		private final BucketFactory _bf;
+		private volatile GetResult result;
+		private final SizedBucketFactory _bf;
 		
-		SnoopGetter (BucketFactory bf) {
+		SnoopGetter (SizedBucketFactory bf) {
 			_bf = bf;
 		}
 
@@ -78,8 +103,7 @@ public class KeyExplorerUtils {
 				ClientContext context) {
 			Bucket temp;
 			try {
-				temp = _bf.makeBucket(data.size());
-				BucketTools.copy(data, temp);
+				temp = _bf.copyOf(data);
 			} catch (IOException e) {
 				Logger.error(this, "Bucket error, disk full?", e);
 				return true;
@@ -89,46 +113,309 @@ public class KeyExplorerUtils {
 		}
 	}
 
+	/**
+	 * Adapter between the node's {@link ClientGetCallback} and a {@link FetchCallback}.
+	 */
+	private static abstract class HandleCallback<T> implements ClientGetCallback {
+
+		protected final FetchCallback<T> handle;
+		private final RequestClient client;
+
+		HandleCallback(PluginRespirator pr, FetchCallback<T> handle2) {
+			client = (RequestClient) pr.getHLSimpleClient();
+			handle = handle2;
+		}
+
+		@Override
+		public void onFailure(FetchException e, ClientGetter state) {
+			handle.onFailure(e);
+		}
+
+		@Override
+		public void onResume(ClientContext context) {
+			// not persistent, nothing to resume
+		}
+
+		@Override
+		public RequestClient getRequestClient() {
+			return client;
+		}
+	}
+
 	public static Metadata simpleManifestGet(PluginRespirator pr, FreenetURI uri) throws MetadataParseException, FetchException, IOException {
-		GetResult res = simpleGet(pr, uri);
-		if (!res.isMetaData()) {
-			throw new MetadataParseException("uri did not point to metadata " + uri);
+		try {
+			return simpleManifestGetAsync(pr, uri, null).waitForCompletion();
+		} catch (FetchException e) {
+			throw unwrapIOError(e);
 		}
-		return Metadata.construct(res.getData());
+	}
+
+	public static FetchHandle<Metadata> simpleManifestGetAsync(PluginRespirator pr, final FreenetURI uri, FetchCallback<Metadata> cb) {
+		final FetchHandle<Metadata> handle = new FetchHandle<Metadata>(cb);
+		Metadata cached = metadataCache.getMetadata(uri);
+		if (cached != null) {
+			handle.onSuccess(cached);
+			return handle;
+		}
+		simpleGetAsync(pr, uri, new FetchCallback<GetResult>() {
+
+			@Override
+			public void onSuccess(GetResult res) {
+				try {
+					if (!res.isMetaData()) {
+						throw new MetadataParseException("uri did not point to metadata " + uri);
+					}
+					handle.onSuccess(Metadata.construct(res.getData()));
+				} catch (MetadataParseException e) {
+					handle.onFailure(wrapParseError(e));
+				} catch (IOException e) {
+					handle.onFailure(wrapIOError(e));
+				} finally {
+					res.free();
+				}
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				handle.onFailure(e);
+			}
+		});
+		return handle;
 	}
 
 	public static GetResult simpleGet(PluginRespirator pr, FreenetURI uri) throws FetchException {
-		SnoopGetter snooper = new SnoopGetter(pr.getNode().clientCore.tempBucketFactory);
+		return simpleGetAsync(pr, uri, null).waitForCompletion();
+	}
+
+	/**
+	 * Fetch the top level block of a key without blocking the calling thread.
+	 * Concurrent requests for the same key share one fetch, every caller
+	 * gets its own copy of the result and has to free it.
+	 *
+	 * @param cb optional callback, called on completion
+	 * @return the completion handle
+	 */
+	public static FetchHandle<GetResult> simpleGetAsync(final PluginRespirator pr, final FreenetURI uri, FetchCallback<GetResult> cb) {
+		GetResult cached = metadataCache.get(uri);
+		if (cached != null) {
+			FetchHandle<GetResult> handle = new FetchHandle<GetResult>(cb);
+			handle.onSuccess(cached);
+			return handle;
+		}
+		final SizedBucketFactory bf = new SizedBucketFactory(pr.getNode().clientCore.tempBucketFactory);
+		return simpleGetFlights.fetch("simple:" + uri.toString(false, false), new SingleFlight.Operation<GetResult>() {
+			@Override
+			protected void start(FetchCallback<GetResult> shared) {
+				startSimpleGet(pr, uri, bf, shared);
+			}
+
+			@Override
+			protected GetResult copy(GetResult result) throws IOException {
+				return new GetResult(bf.copyOf(result.getData()), result.isMetaData());
+			}
+
+			@Override
+			protected void free(GetResult result) {
+				result.free();
+			}
+		}, cb);
+	}
+
+	private static void startSimpleGet(PluginRespirator pr, final FreenetURI uri, SizedBucketFactory bf, final FetchCallback<GetResult> handle) {
+		final SnoopGetter snooper = new SnoopGetter(bf);
 		FetchContext context = pr.getHLSimpleClient().getFetchContext();
-		FetchWaiter fw = new FetchWaiter((RequestClient)pr.getHLSimpleClient());
-		ClientGetter get = new ClientGetter(fw, uri, context, RequestStarter.INTERACTIVE_PRIORITY_CLASS, null, null);
+		ClientGetCallback callback = new HandleCallback<GetResult>(pr, handle) {
+
+			@Override
+			public void onSuccess(FetchResult result, ClientGetter state) {
+				result.asBucket().free();
+				if (snooper.result == null) {
+					// the fetch completed without passing the top level block
+					handle.onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Top level block not captured"));
+					return;
+				}
+				metadataCache.put(uri, snooper.result);
+				handle.onSuccess(snooper.result);
+			}
+
+			@Override
+			public void onFailure(FetchException e, ClientGetter state) {
+				if (snooper.result == null) {
+					// really an error
+					Logger.error(KeyExplorerUtils.class, "pfehler", e);
+					handle.onFailure(e);
+				} else {
+					metadataCache.put(uri, snooper.result);
+					handle.onSuccess(snooper.result);
+				}
+			}
+		};
+		ClientGetter get = new ClientGetter(callback, uri, context, RequestStarter.INTERACTIVE_PRIORITY_CLASS, null, null);
 		get.setBucketSnoop(snooper);
 
 		try {
 			get.start(pr.getNode().clientCore.clientContext);
-			fw.waitForCompletion();
 		} catch (FetchException e) {
-			if (snooper.result == null) {
-				// really an error
-				Logger.error(KeyExplorerUtils.class, "pfehler", e);
-				throw e;
+			callback.onFailure(e, get);
+		}
+	}
+
+	public static FetchResult splitGet(PluginRespirator pr, Metadata metadata) throws FetchException, MetadataParseException {
+		try {
+			return splitGetAsync(pr, metadata, null).waitForCompletion();
+		} catch (FetchException e) {
+			throw unwrapParseError(e);
+		}
+	}
+
+	/**
+	 * Fetch the data of a splitfile without blocking the calling thread.
+	 *
+	 * @param cb optional callback, called on completion
+	 * @return the completion handle
+	 */
+	public static FetchHandle<FetchResult> splitGetAsync(PluginRespirator pr, Metadata metadata, FetchCallback<FetchResult> cb) {
+		final FetchHandle<FetchResult> handle = new FetchHandle<FetchResult>(cb);
+		FetchContext ctx = pr.getHLSimpleClient().getFetchContext();
+		long size = SizedBucketFactory.expectedSize(metadata);
+		if (size < 0) {
+			// FIXME use the two max lengths separately.
+			size = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
+		}
+		final Bucket finalResult;
+		final OutputStream output;
+		try {
+			finalResult = new SizedBucketFactory(pr.getNode().clientCore.tempBucketFactory).makeBucket(size);
+		} catch (IOException e) {
+			Logger.error(KeyExplorerUtils.class, "Caught "+e, e);
+			handle.onFailure(new FetchException(FetchExceptionMode.BUCKET_ERROR, e));
+			return handle;
+		}
+		try {
+			output = finalResult.getOutputStream();
+		} catch (IOException e) {
+			Logger.error(KeyExplorerUtils.class, "Caught "+e, e);
+			finalResult.free();
+			handle.onFailure(new FetchException(FetchExceptionMode.BUCKET_ERROR, e));
+			return handle;
+		}
+		splitFetch(pr, metadata, ctx, output, new FetchCallback<ClientMetadata>() {
+
+			@Override
+			public void onSuccess(ClientMetadata clientMetadata) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					Logger.error(KeyExplorerUtils.class, "Caught "+e, e);
+					finalResult.free();
+					handle.onFailure(new FetchException(FetchExceptionMode.BUCKET_ERROR, e));
+					return;
+				}
+				if(logMINOR) Logger.minor(KeyExplorerUtils.class, "Size of written data: "+finalResult.size());
+				handle.onSuccess(new FetchResult(clientMetadata, finalResult));
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				Closer.close(output);
+				finalResult.free();
+				handle.onFailure(e);
+			}
+		});
+		return handle;
+	}
+
+	/**
+	 * Fetch the data of a splitfile and write it into the given sink.
+	 * The sink is flushed but not closed.
+	 *
+	 * @return the number of bytes written
+	 */
+	public static long splitGet(PluginRespirator pr, Metadata metadata, OutputStream sink) throws FetchException, MetadataParseException {
+		try {
+			return splitGetAsync(pr, metadata, sink, null).waitForCompletion();
+		} catch (FetchException e) {
+			throw unwrapParseError(e);
+		}
+	}
+
+	public static long splitGet(PluginRespirator pr, Metadata metadata, WritableByteChannel sink) throws FetchException, MetadataParseException {
+		return splitGet(pr, metadata, Channels.newOutputStream(sink));
+	}
+
+	/**
+	 * Fetch the data of a splitfile into the given sink without blocking the calling thread.
+	 * The decoded and decompressed data is written as it comes, nothing is buffered
+	 * in a temporary bucket. The sink is flushed but not closed.
+	 *
+	 * @param cb optional callback, called on completion with the number of bytes written
+	 * @return the completion handle
+	 */
+	public static FetchHandle<Long> splitGetAsync(PluginRespirator pr, Metadata metadata, OutputStream sink, FetchCallback<Long> cb) {
+		final FetchHandle<Long> handle = new FetchHandle<Long>(cb);
+		final SinkOutputStream output = new SinkOutputStream(sink);
+		splitFetch(pr, metadata, pr.getHLSimpleClient().getFetchContext(), output, new FetchCallback<ClientMetadata>() {
+
+			@Override
+			public void onSuccess(ClientMetadata clientMetadata) {
+				handle.onSuccess(output.written());
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				handle.onFailure(e);
 			}
+		});
+		return handle;
+	}
+
+	/**
+	 * Does not close the wrapped stream and counts the bytes written.
+	 * The splitfile stream generator closes the stream it writes to.
+	 */
+	private static class SinkOutputStream extends FilterOutputStream {
+
+		private long written;
+
+		SinkOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			written++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			written += len;
 		}
 
-		return snooper.result;
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		long written() {
+			return written;
+		}
 	}
 
-	public static FetchResult splitGet(PluginRespirator pr, Metadata metadata) throws FetchException, MetadataParseException {
+	private static void splitFetch(PluginRespirator pr, Metadata metadata, FetchContext ctx, final OutputStream sink, FetchCallback<ClientMetadata> cb) {
+
+		final FetchHandle<ClientMetadata> handle = new FetchHandle<ClientMetadata>(cb);
 
 		if (!metadata.isSplitfile()) {
-			throw new MetadataParseException("uri did not point to splitfile");
+			handle.onFailure(wrapParseError(new MetadataParseException("uri did not point to splitfile")));
+			return;
 		}
 
-		final FetchWaiter fw = new FetchWaiter((RequestClient)pr.getHLSimpleClient());
-
-		final FetchContext ctx = pr.getHLSimpleClient().getFetchContext();
+		// FIXME use the two max lengths separately.
+		final long maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
 
-		GetCompletionCallback cb = new GetCompletionCallback() {
+		GetCompletionCallback cb2 = new GetCompletionCallback() {
 
 			@Override
 			public void onBlockSetFinished(ClientGetState state, ClientContext context) {
@@ -144,7 +431,7 @@ public class KeyExplorerUtils {
 
 			@Override
 			public void onFailure(FetchException e, ClientGetState state, ClientContext context) {
-				fw.onFailure(e, null);
+				handle.onFailure(e);
 			}
 
 			@Override
@@ -181,122 +468,30 @@ public class KeyExplorerUtils {
 					ClientGetState state, 
 					ClientContext context) {
 
-				PipedOutputStream dataOutput = new PipedOutputStream();
-				PipedInputStream dataInput = new PipedInputStream();
-				OutputStream output = null;
-
-				DecompressorThreadManager decompressorManager = null;
-				ClientGetWorkerThread worker = null;
-				Bucket finalResult = null;
-				FetchResult result = null;
-
-				// FIXME use the two max lengths separately.
-				long maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
-
 				try {
-					finalResult = context.getBucketFactory(false).makeBucket(maxLen);
-					dataOutput .connect(dataInput);
-					result = new FetchResult(clientMetadata, finalResult);
-
-					// Decompress
-					if(decompressors != null) {
+					if (decompressors == null || decompressors.isEmpty()) {
+						// Nothing to decode, the generator writes straight into the sink
+						streamGenerator.writeTo(sink, context);
+					} else {
 						if(logMINOR) Logger.minor(this, "Decompressing...");
-						decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
-						dataInput = decompressorManager.execute();
-					}
-
-					output = finalResult.getOutputStream();
-					worker = new ClientGetWorkerThread(dataInput, output, null, null, null, null, false, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, null);
-					worker.start();
-					try {
-						streamGenerator.writeTo(dataOutput, context);
-					} catch(IOException e) {
-						//Check if the worker thread caught an exception
-						worker.getError();
-						//If not, throw the original error
-						throw e;
-					}
-
-					if(logMINOR) Logger.minor(this, "Size of written data: "+result.asBucket().size());
-
-					if(decompressorManager != null) {
-						if(logMINOR) Logger.minor(this, "Waiting for decompression to finalize");
-						decompressorManager.waitFinished();
+						decompressTo(streamGenerator, decompressors, sink, maxLen, context);
 					}
-
-					if(logMINOR) Logger.minor(this, "Waiting for hashing, filtration, and writing to finish");
-					worker.waitFinished();
-
-					if(worker.getClientMetadata() != null) {
-						clientMetadata = worker.getClientMetadata();
-						result = new FetchResult(clientMetadata, finalResult);
-					}
-					dataOutput.close();
-					dataInput.close();
-					output.close();
-				} catch(UnsafeContentTypeException e) {
-					Logger.error(this, "Impossible, this piece of code does not filter", e);
-					onFailure(new FetchException(e.getFetchErrorCode(), e), state, context);
-					if(finalResult != null) {
-						finalResult.free();
-					}
-					Bucket data = result.asBucket();
-					data.free();
-					return;
-				} catch(URISyntaxException e) {
-					//Impossible
-					Logger.error(this, "URISyntaxException converting a FreenetURI to a URI!: "+e, e);
-					onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, e), state/*Not really the state's fault*/, context);
-					if(finalResult != null) {
-						finalResult.free();
-					}
-					Bucket data = result.asBucket();
-					data.free();
-					return;
+					sink.flush();
 				} catch(CompressionOutputSizeException e) {
 					Logger.error(this, "Caught "+e, e);
 					onFailure(new FetchException(FetchExceptionMode.TOO_BIG, e), state, context);
-					if(finalResult != null) {
-						finalResult.free();
-					}
-					Bucket data = result.asBucket();
-					data.free();
 					return;
 				} catch(IOException e) {
 					Logger.error(this, "Caught "+e, e);
 					onFailure(new FetchException(FetchExceptionMode.BUCKET_ERROR, e), state, context);
-					if(finalResult != null) {
-						finalResult.free();
-					}
-					Bucket data = result.asBucket();
-					data.free();
-					return;
-				} catch(FetchException e) {
-					Logger.error(this, "Caught "+e, e);
-					onFailure(e, state, context);
-					if(finalResult != null) {
-						finalResult.free();
-					}
-					Bucket data = result.asBucket();
-					data.free();
 					return;
 				} catch(Throwable t) {
 					Logger.error(this, "Caught "+t, t);
 					onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, t), state, context);
-					if(finalResult != null) {
-						finalResult.free();
-					}
-					Bucket data = result.asBucket();
-					data.free();
 					return;
-				} finally {
-					Closer.close(dataInput);
-					Closer.close(dataOutput);
-					Closer.close(output);
 				}
 
-				fw.onSuccess(result, null);
-
+				handle.onSuccess(clientMetadata);
 			}
 
 		};
@@ -310,95 +505,568 @@ public class KeyExplorerUtils {
 			decompressors.add(codec);
 		}
 		VerySimpleGetter vsg = new VerySimpleGetter((short) 1, null, (RequestClient) pr.getHLSimpleClient());
-		SplitFileFetcher sf = new SplitFileFetcher(metadata, cb, vsg, ctx, true, decompressors, clientMetadata, token, false,
-				CompatibilityMode.COMPAT_UNKNOWN.code, false, null, true, pr.getNode().clientCore.clientContext);
+		try {
+			SplitFileFetcher sf = new SplitFileFetcher(metadata, cb2, vsg, ctx, true, decompressors, clientMetadata, token, false,
+					CompatibilityMode.COMPAT_UNKNOWN.code, false, null, true, pr.getNode().clientCore.clientContext);
 
-		// VerySimpleGetter vsg = new VerySimpleGetter((short) 1, uri,
-		// (RequestClient) pr.getHLSimpleClient());
-		// VerySimpleGet vs = new VerySimpleGet(ck, 0,
-		// pr.getHLSimpleClient().getFetchContext(), vsg);
-		sf.schedule(pr.getNode().clientCore.clientContext);
-		// fw.waitForCompletion();
-		return fw.waitForCompletion();
+			// VerySimpleGetter vsg = new VerySimpleGetter((short) 1, uri,
+			// (RequestClient) pr.getHLSimpleClient());
+			// VerySimpleGet vs = new VerySimpleGet(ck, 0,
+			// pr.getHLSimpleClient().getFetchContext(), vsg);
+			sf.schedule(pr.getNode().clientCore.clientContext);
+		} catch (FetchException e) {
+			handle.onFailure(e);
+		}
+	}
+
+	/**
+	 * The stream generator pushes the data, the decompressors pull it. So the
+	 * generator gets its own thread and the current one runs the (last)
+	 * decompressor, writing straight into the sink.
+	 */
+	private static void decompressTo(final StreamGenerator streamGenerator, List<? extends Compressor> decompressors, OutputStream sink, long maxLen, final ClientContext context) throws Throwable {
+		PipedInputStream dataInput = new PipedInputStream(32768);
+		final PipedOutputStream dataOutput = new PipedOutputStream(dataInput);
+		final CountDownLatch writerDone = new CountDownLatch(1);
+		final IOException[] writerError = new IOException[1];
+		DecompressorThreadManager decompressorManager = null;
+		InputStream input = dataInput;
+		try {
+			context.mainExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						streamGenerator.writeTo(dataOutput, context);
+					} catch (IOException e) {
+						writerError[0] = e;
+					} finally {
+						Closer.close(dataOutput);
+						writerDone.countDown();
+					}
+				}
+			}, "KeyUtils splitfile stream generator");
+
+			int last = decompressors.size() - 1;
+			if (last > 0) {
+				// Layered compression, let the node's threads unwrap all but the last layer
+				decompressorManager = new DecompressorThreadManager(dataInput, decompressors.subList(0, last), maxLen);
+				input = decompressorManager.execute();
+			}
+			decompressors.get(last).decompress(input, sink, maxLen, maxLen);
+
+			if(decompressorManager != null) {
+				if(logMINOR) Logger.minor(KeyExplorerUtils.class, "Waiting for decompression to finalize");
+				decompressorManager.waitFinished();
+			}
+			writerDone.await();
+			if (writerError[0] != null) {
+				throw writerError[0];
+			}
+		} finally {
+			// unblocks the generator if decompression failed
+			Closer.close(input);
+			Closer.close(dataInput);
+		}
 	}
 
 	public static Metadata splitManifestGet(PluginRespirator pr, Metadata metadata) throws MetadataParseException, IOException, FetchException {
-		FetchResult res = splitGet(pr, metadata);
-		return Metadata.construct(res.asBucket());
+		try {
+			return splitManifestGetAsync(pr, metadata, null).waitForCompletion();
+		} catch (FetchException e) {
+			throw unwrapIOError(e);
+		}
 	}
 
-	public static Metadata zipManifestGet(PluginRespirator pr, FreenetURI uri) throws FetchException, MetadataParseException, IOException {
-		HighLevelSimpleClient hlsc = pr.getHLSimpleClient();
-		FetchContext fctx = hlsc.getFetchContext();
-		fctx.returnZIPManifests = true;
-		FetchWaiter fw = new FetchWaiter((RequestClient)pr.getHLSimpleClient());
-		hlsc.fetch(uri, -1, fw, fctx);
-		FetchResult fr = fw.waitForCompletion();
-		ZipInputStream zis = new ZipInputStream(fr.asBucket().getInputStream());
-		ZipEntry entry;
-		ByteArrayOutputStream bos;
-		while (true) {
-			entry = zis.getNextEntry();
-			if (entry == null)
-				break;
-			if (entry.isDirectory())
-				continue;
-			String name = entry.getName();
-			if (".metadata".equals(name)) {
-				byte[] buf = new byte[32768];
-				bos = new ByteArrayOutputStream();
-				// Read the element
-				int readBytes;
-				while ((readBytes = zis.read(buf)) > 0) {
-					bos.write(buf, 0, readBytes);
-				}
-				bos.close();
-				return Metadata.construct(bos.toByteArray());
+	public static FetchHandle<Metadata> splitManifestGetAsync(PluginRespirator pr, Metadata metadata, FetchCallback<Metadata> cb) {
+		final FetchHandle<Metadata> handle = new FetchHandle<Metadata>(cb);
+		splitGetAsync(pr, metadata, new ParsingCallback<Metadata>(handle) {
+			@Override
+			Metadata parse(Bucket data) throws MetadataParseException, IOException {
+				return Metadata.construct(data);
 			}
+		});
+		return handle;
+	}
+
+	public static Metadata zipManifestGet(PluginRespirator pr, FreenetURI uri) throws FetchException, MetadataParseException, IOException {
+		try {
+			return zipManifestGetAsync(pr, uri, null).waitForCompletion();
+		} catch (FetchException e) {
+			throw unwrapIOError(e);
 		}
-		throw new FetchException(FetchExceptionMode.INVALID_METADATA, "impossible? no metadata in archive " + uri);
+	}
+
+	/**
+	 * Look up the manifest of a ZIP container. Only the central directory
+	 * and the .metadata entry are read, the container is taken from the
+	 * container cache.
+	 */
+	public static FetchHandle<Metadata> zipManifestGetAsync(PluginRespirator pr, FreenetURI uri, FetchCallback<Metadata> cb) {
+		return archiveMetadataGetAsync(pr, uri, ARCHIVE_TYPE.ZIP, ".metadata", cb);
 	}
 
 	public static Metadata tarManifestGet(PluginRespirator pr, Metadata md, String metaName) throws FetchException, MetadataParseException, IOException {
-		FetchResult fr;
-		fr = splitGet(pr, md);
-		return internalTarManifestGet(fr.asBucket(), metaName);
+		try {
+			return tarManifestGetAsync(pr, md, metaName, null).waitForCompletion();
+		} catch (FetchException e) {
+			throw unwrapIOError(e);
+		}
+	}
+
+	public static FetchHandle<Metadata> tarManifestGetAsync(PluginRespirator pr, Metadata md, final String metaName, FetchCallback<Metadata> cb) {
+		final FetchHandle<Metadata> handle = new FetchHandle<Metadata>(cb);
+		splitGetAsync(pr, md, new ParsingCallback<Metadata>(handle) {
+			@Override
+			Metadata parse(Bucket data) throws MetadataParseException, IOException, FetchException {
+				return internalTarManifestGet(data, metaName);
+			}
+		});
+		return handle;
 	}
 
 	public static Metadata tarManifestGet(PluginRespirator pr, FreenetURI uri, String metaName) throws FetchException, MetadataParseException, IOException {
+		try {
+			return tarManifestGetAsync(pr, uri, metaName, null).waitForCompletion();
+		} catch (FetchException e) {
+			throw unwrapIOError(e);
+		}
+	}
+
+	/**
+	 * Look up an entry of a TAR container. The container is taken from
+	 * the container cache, so repeated lookups fetch it only once.
+	 */
+	public static FetchHandle<Metadata> tarManifestGetAsync(PluginRespirator pr, FreenetURI uri, String metaName, FetchCallback<Metadata> cb) {
+		return archiveMetadataGetAsync(pr, uri, ARCHIVE_TYPE.TAR, metaName, cb);
+	}
+
+	private static FetchHandle<Metadata> archiveMetadataGetAsync(PluginRespirator pr, FreenetURI uri, ARCHIVE_TYPE type, final String metaName, FetchCallback<Metadata> cb) {
+		final FetchHandle<Metadata> handle = new FetchHandle<Metadata>(cb);
+		archiveCache.acquireAsync(pr, uri, type, new FetchCallback<CachedArchive>() {
+			@Override
+			public void onSuccess(CachedArchive archive) {
+				try {
+					handle.onSuccess(archive.getIndex().getMetadata(metaName));
+				} catch (MetadataParseException e) {
+					handle.onFailure(wrapParseError(e));
+				} catch (IOException e) {
+					handle.onFailure(wrapIOError(e));
+				} catch (FetchException e) {
+					handle.onFailure(e);
+				} finally {
+					archive.release();
+				}
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				handle.onFailure(e);
+			}
+		});
+		return handle;
+	}
+
+	/**
+	 * @return true if the document has metadata of its own behind it that
+	 *  {@link #subMetadataGetAsync} can fetch: multi level metadata,
+	 *  containers and control documents hiding multi level metadata
+	 */
+	public static boolean hasSubMetadata(Metadata md) {
+		if (md.isSimpleManifest() || md.isArchiveInternalRedirect() || md.isSymbolicShortlink()) {
+			return false;
+		}
+		if (md.isMultiLevelMetadata()) {
+			return true;
+		}
+		if (md.isSimpleRedirect()) {
+			// a control document may hide multi level metadata
+			return md.isNoMimeEnabled() && md.isSingleFileRedirect() && (md.getSingleTarget().getExtra()[2] & 0x02) != 0;
+		}
+		if (md.isArchiveMetadataRedirect()) {
+			return true;
+		}
+		return md.isArchiveManifest() && md.getArchiveType() == ARCHIVE_TYPE.TAR;
+	}
+
+	/**
+	 * Fetch the sub metadata of a document, see {@link #hasSubMetadata(Metadata)}.
+	 *
+	 * @param uri the URI of the container an archive metadata redirect points into
+	 */
+	public static FetchHandle<Metadata> subMetadataGetAsync(final PluginRespirator pr, Metadata md, FreenetURI uri, FetchCallback<Metadata> cb) {
+		final FetchHandle<Metadata> handle = new FetchHandle<Metadata>(cb);
+		if (md.isMultiLevelMetadata()) {
+			if (md.isSingleFileRedirect()) {
+				simpleManifestGetAsync(pr, md.getSingleTarget(), handle);
+			} else {
+				splitManifestGetAsync(pr, md, handle);
+			}
+		} else if (md.isSimpleRedirect()) {
+			// control doc, look inside for ML
+			simpleManifestGetAsync(pr, md.getSingleTarget(), new FetchCallback<Metadata>() {
+				@Override
+				public void onSuccess(Metadata subMd) {
+					if (subMd.isMultiLevelMetadata()) {
+						// really multilevel, fetch it
+						splitManifestGetAsync(pr, subMd, handle);
+					} else {
+						handle.onSuccess(subMd);
+					}
+				}
+
+				@Override
+				public void onFailure(FetchException e) {
+					handle.onFailure(e);
+				}
+			});
+		} else if (md.isArchiveMetadataRedirect()) {
+			tarManifestGetAsync(pr, uri, md.getArchiveInternalName(), handle);
+		} else if (md.isSplitfile()) {
+			tarManifestGetAsync(pr, md, ".metadata", handle);
+		} else {
+			tarManifestGetAsync(pr, md.getSingleTarget(), ".metadata", handle);
+		}
+		return handle;
+	}
+
+	/**
+	 * @return the short name of the document type (SRE, SMF, AIR, ...), "?" if unknown
+	 */
+	public static String documentType(Metadata md) {
+		if (md.isSimpleRedirect()) {
+			return "SRE";
+		} else if (md.isSimpleManifest()) {
+			return "SMF";
+		} else if (md.isArchiveInternalRedirect()) {
+			return "AIR";
+		} else if (md.isArchiveMetadataRedirect()) {
+			return "AMR";
+		} else if (md.isArchiveManifest()) {
+			return "ARE";
+		} else if (md.isMultiLevelMetadata()) {
+			return "MLM";
+		} else if (md.isSymbolicShortlink()) {
+			return "SYS";
+		}
+		return "?";
+	}
+
+	/**
+	 * Fetch a container (TAR/ZIP manifest) as it is, without unpacking it.
+	 */
+	private static void containerGetAsync(PluginRespirator pr, FreenetURI uri, FetchCallback<FetchResult> cb) {
 		HighLevelSimpleClient hlsc = pr.getHLSimpleClient();
 		FetchContext fctx = hlsc.getFetchContext();
 		fctx.returnZIPManifests = true;
-		FetchWaiter fw = new FetchWaiter((RequestClient)pr.getHLSimpleClient());
-		hlsc.fetch(uri, -1, fw, fctx);
-		FetchResult fr = fw.waitForCompletion();
-		return internalTarManifestGet(fr.asBucket(), metaName);
+		final FetchHandle<FetchResult> handle = new FetchHandle<FetchResult>(cb);
+		ClientGetCallback callback = new HandleCallback<FetchResult>(pr, handle) {
+			@Override
+			public void onSuccess(FetchResult result, ClientGetter state) {
+				handle.onSuccess(result);
+			}
+		};
+		try {
+			hlsc.fetch(uri, -1, callback, fctx);
+		} catch (FetchException e) {
+			handle.onFailure(e);
+		}
 	}
 
-	public static Metadata internalTarManifestGet(Bucket data, String metaName) throws IOException, MetadataParseException, FetchException {
-		TarInputStream zis = new TarInputStream(data.getInputStream());
-		TarEntry entry;
-		ByteArrayOutputStream bos;
-		while (true) {
-			entry = zis.getNextEntry();
-			if (entry == null)
-				break;
-			if (entry.isDirectory())
-				continue;
-			String name = entry.getName();
-			if (metaName.equals(name)) {
-				byte[] buf = new byte[32768];
-				bos = new ByteArrayOutputStream();
-				// Read the element
-				int readBytes;
-				while ((readBytes = zis.read(buf)) > 0) {
-					bos.write(buf, 0, readBytes);
+	/**
+	 * Fetch a file completely, as a browser would get it (but unfiltered).
+	 * @param maxSize larger files fail with TOO_BIG
+	 */
+	public static FetchHandle<FetchResult> fileGetAsync(PluginRespirator pr, FreenetURI uri, long maxSize, FetchCallback<FetchResult> cb) {
+		HighLevelSimpleClient hlsc = pr.getHLSimpleClient();
+		FetchContext fctx = hlsc.getFetchContext(maxSize);
+		fctx.filterData = false;
+		final FetchHandle<FetchResult> handle = new FetchHandle<FetchResult>(cb);
+		ClientGetCallback callback = new HandleCallback<FetchResult>(pr, handle) {
+			@Override
+			public void onSuccess(FetchResult result, ClientGetter state) {
+				handle.onSuccess(result);
+			}
+		};
+		try {
+			hlsc.fetch(uri, maxSize, callback, fctx);
+		} catch (FetchException e) {
+			handle.onFailure(e);
+		}
+		return handle;
+	}
+
+	/**
+	 * Fetch the complete content of a key, or take it from the cache. On
+	 * success the caller has to {@link ContentCache.CachedContent#release()} it.
+	 */
+	public static ContentCache.CachedContent acquireContent(final PluginRespirator pr, final FreenetURI uri) throws FetchException {
+		return contentCache.acquire(pr, uri.toString(false, false), uri, new FetchQueue.Job<FetchResult>() {
+			@Override
+			public void start(FetchCallback<FetchResult> cb) {
+				fileGetAsync(pr, uri, MAX_CONTENT_SIZE, cb);
+			}
+		});
+	}
+
+	/**
+	 * Fetch the top level block of a key and, if it is splitfile metadata,
+	 * the splitfile. No containers or redirects are followed.
+	 */
+	public static FetchHandle<FetchResult> splitDownloadAsync(final PluginRespirator pr, FreenetURI uri, FetchCallback<FetchResult> cb) {
+		final FetchHandle<FetchResult> handle = new FetchHandle<FetchResult>(cb);
+		simpleGetAsync(pr, uri, new FetchCallback<GetResult>() {
+			@Override
+			public void onSuccess(GetResult result) {
+				if (!result.isMetaData()) {
+					handle.onSuccess(new FetchResult(new ClientMetadata(), result.getData()));
+					return;
 				}
-				bos.close();
-				return Metadata.construct(bos.toByteArray());
+				Metadata md;
+				try {
+					md = Metadata.construct(result.getData());
+				} catch (MetadataParseException e) {
+					handle.onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, e));
+					return;
+				} catch (IOException e) {
+					handle.onFailure(new FetchException(FetchExceptionMode.BUCKET_ERROR, e));
+					return;
+				} finally {
+					result.free();
+				}
+				if (!md.isSplitfile()) {
+					handle.onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, "Unsupported Metadata: Not a Splitfile"));
+					return;
+				}
+				splitGetAsync(pr, md, handle);
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				handle.onFailure(e);
 			}
+		});
+		return handle;
+	}
+
+	/**
+	 * Get the result of a split download from the download cache, or
+	 * fetch it. On success the caller has to
+	 * {@link ContentCache.CachedContent#release()} it.
+	 */
+	public static ContentCache.CachedContent acquireSplitDownload(final PluginRespirator pr, final FreenetURI uri) throws FetchException {
+		return downloadCache.acquire(pr, "split:" + uri.toString(false, false), uri, new FetchQueue.Job<FetchResult>() {
+			@Override
+			public void start(FetchCallback<FetchResult> cb) {
+				splitDownloadAsync(pr, uri, cb);
+			}
+		});
+	}
+
+	/** a splitfile block, plus some slack */
+	private static final long MAX_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Check if a single block can be fetched right now. The fetch is not
+	 * retried, a block that is not found on the first try counts as missing.
+	 *
+	 * @param uri the key of the block, usually from the segment keys of a splitfile
+	 * @param cb gets true if the block was found, false if not, failures
+	 *  are only reported for cancelled or broken fetches
+	 */
+	public static FetchHandle<Boolean> probeBlockAsync(PluginRespirator pr, final FreenetURI uri, FetchCallback<Boolean> cb) {
+		HighLevelSimpleClient hlsc = pr.getHLSimpleClient();
+		FetchContext fctx = hlsc.getFetchContext(MAX_BLOCK_SIZE);
+		fctx.maxNonSplitfileRetries = 0;
+		fctx.maxSplitfileBlockRetries = 0;
+		final FetchHandle<Boolean> handle = new FetchHandle<Boolean>(cb);
+		ClientGetCallback callback = new HandleCallback<Boolean>(pr, handle) {
+			@Override
+			public void onSuccess(FetchResult result, ClientGetter state) {
+				result.asBucket().free();
+				handle.onSuccess(Boolean.TRUE);
+			}
+
+			@Override
+			public void onFailure(FetchException e, ClientGetter state) {
+				if (e.isDataFound()) {
+					handle.onSuccess(Boolean.TRUE);
+				} else if (e.mode == FetchExceptionMode.CANCELLED || e.mode == FetchExceptionMode.INTERNAL_ERROR) {
+					handle.onFailure(e);
+				} else {
+					if (logMINOR) Logger.minor(KeyExplorerUtils.class, "Block not found (" + e.mode + "): " + uri);
+					handle.onSuccess(Boolean.FALSE);
+				}
+			}
+		};
+		try {
+			hlsc.fetch(uri, MAX_BLOCK_SIZE, callback, fctx);
+		} catch (FetchException e) {
+			callback.onFailure(e, null);
+		}
+		return handle;
+	}
+
+	/**
+	 * Drop all cached containers and metadata, called on plugin unload.
+	 */
+	public static void clearCaches() {
+		archiveCache.clear();
+		metadataCache.clear();
+		contentCache.clear();
+		downloadCache.clear();
+	}
+
+	/**
+	 * @return a clone of the cached top level metadata of the key, null if not cached
+	 */
+	public static Metadata getCachedMetadata(FreenetURI uri) {
+		return metadataCache.getMetadata(uri);
+	}
+
+	/**
+	 * @return true if the content of the key can never change (CHK, SSK)
+	 */
+	public static boolean isImmutable(FreenetURI uri) {
+		String type = uri.getKeyType();
+		return "CHK".equals(type) || "SSK".equals(type);
+	}
+
+	/**
+	 * Fetch a container and index it, or take it from the container cache.
+	 * On success the caller has to {@link CachedArchive#release()} it.
+	 */
+	public static CachedArchive acquireArchive(PluginRespirator pr, FreenetURI uri, ARCHIVE_TYPE type) throws FetchException {
+		return archiveCache.acquire(pr, uri, type);
+	}
+
+	/**
+	 * Fetch a container and index it. The caller owns the index and
+	 * has to {@link ArchiveIndex#free()} it.
+	 */
+	public static ArchiveIndex archiveIndexGet(PluginRespirator pr, FreenetURI uri, ARCHIVE_TYPE type) throws FetchException, IOException {
+		try {
+			return archiveIndexGetAsync(pr, uri, type, null).waitForCompletion();
+		} catch (FetchException e) {
+			if (e.mode == FetchExceptionMode.BUCKET_ERROR && e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public static FetchHandle<ArchiveIndex> archiveIndexGetAsync(PluginRespirator pr, FreenetURI uri, final ARCHIVE_TYPE type, FetchCallback<ArchiveIndex> cb) {
+		final FetchHandle<ArchiveIndex> handle = new FetchHandle<ArchiveIndex>(cb);
+		containerGetAsync(pr, uri, new FetchCallback<FetchResult>() {
+			@Override
+			public void onSuccess(FetchResult result) {
+				Bucket data = result.asBucket();
+				ArchiveIndex index;
+				try {
+					index = ArchiveIndex.build(data, type);
+				} catch (IOException e) {
+					data.free();
+					handle.onFailure(wrapIOError(e));
+					return;
+				} catch (RuntimeException e) {
+					// a broken container must not leave the handle pending
+					Logger.error(KeyExplorerUtils.class, "Failed to index container: " + e, e);
+					data.free();
+					handle.onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, e));
+					return;
+				} catch (OutOfMemoryError e) {
+					data.free();
+					handle.onFailure(new FetchException(FetchExceptionMode.BUCKET_ERROR, e));
+					return;
+				}
+				handle.onSuccess(index);
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				handle.onFailure(e);
+			}
+		});
+		return handle;
+	}
+
+	/**
+	 * Single lookup in a TAR container. Use {@link #archiveIndexGet(PluginRespirator, FreenetURI, ARCHIVE_TYPE)}
+	 * for more than one lookup in the same container.
+	 */
+	public static Metadata internalTarManifestGet(Bucket data, String metaName) throws IOException, MetadataParseException, FetchException {
+		// the index does not own the bucket here, the caller frees it
+		return TarArchiveIndex.build(data).getMetadata(metaName);
+	}
+
+	/**
+	 * Turns the fetched data into something else and frees it afterwards.
+	 * Parse errors are passed on wrapped into a {@link FetchException},
+	 * the blocking methods unwrap them again.
+	 */
+	private static abstract class ParsingCallback<T> implements FetchCallback<FetchResult> {
+
+		private final FetchHandle<T> handle;
+
+		ParsingCallback(FetchHandle<T> handle2) {
+			handle = handle2;
+		}
+
+		abstract T parse(Bucket data) throws MetadataParseException, IOException, FetchException;
+
+		@Override
+		public void onSuccess(FetchResult result) {
+			Bucket data = result.asBucket();
+			try {
+				handle.onSuccess(parse(data));
+			} catch (MetadataParseException e) {
+				handle.onFailure(wrapParseError(e));
+			} catch (IOException e) {
+				handle.onFailure(wrapIOError(e));
+			} catch (FetchException e) {
+				handle.onFailure(e);
+			} finally {
+				data.free();
+			}
+		}
+
+		@Override
+		public void onFailure(FetchException e) {
+			handle.onFailure(e);
 		}
-		throw new FetchException(FetchExceptionMode.INVALID_METADATA, "impossible? no metadata in archive ");
+	}
+
+	/**
+	 * Wait for an asynchronous fetch. Parse and bucket errors are unwrapped
+	 * the same way the blocking methods do it.
+	 */
+	public static <T> T waitFor(FetchHandle<T> handle) throws FetchException, MetadataParseException, IOException {
+		try {
+			return handle.waitForCompletion();
+		} catch (FetchException e) {
+			throw unwrapIOError(e);
+		}
+	}
+
+	private static FetchException wrapParseError(MetadataParseException e) {
+		return new FetchException(FetchExceptionMode.INVALID_METADATA, e);
+	}
+
+	private static FetchException wrapIOError(IOException e) {
+		return new FetchException(FetchExceptionMode.BUCKET_ERROR, e);
+	}
+
+	private static FetchException unwrapParseError(FetchException e) throws MetadataParseException {
+		if (e.mode == FetchExceptionMode.INVALID_METADATA && e.getCause() instanceof MetadataParseException) {
+			throw (MetadataParseException) e.getCause();
+		}
+		return e;
+	}
+
+	private static FetchException unwrapIOError(FetchException e) throws MetadataParseException, IOException {
+		if (e.mode == FetchExceptionMode.BUCKET_ERROR && e.getCause() instanceof IOException) {
+			throw (IOException) e.getCause();
+		}
+		return unwrapParseError(e);
 	}
 
 	public static HashMap<String, Object> parseMetadata(Metadata oldMetadata, FreenetURI oldUri) throws MalformedURLException {
@@ -461,13 +1129,27 @@ public class KeyExplorerUtils {
 	}
 
 	public static byte[] unrollMetadata(PluginRespirator pluginRespirator, List<String> errors, Metadata md) throws MalformedURLException, IOException, FetchException, MetadataParseException {
-	
+		Bucket data = unrollMetadataBucket(pluginRespirator, errors, md);
+		if (data == null) {
+			return null;
+		}
+		try {
+			return BucketTools.toByteArray(data);
+		} finally {
+			data.free();
+		}
+	}
+
+	/**
+	 * Fetch the splitfile described by the metadata. The data stays in the
+	 * returned bucket, which the caller has to free.
+	 * @return the data, null if the metadata is not a splitfile
+	 */
+	public static Bucket unrollMetadataBucket(PluginRespirator pluginRespirator, List<String> errors, Metadata md) throws FetchException, MetadataParseException {
 		if (!md.isSplitfile()) {
 			errors.add("Unsupported Metadata: Not a Splitfile");
 			return null;
 		}
-		byte[] result = null;
-		result = BucketTools.toByteArray(splitGet(pluginRespirator, md).asBucket());
-		return result;
+		return splitGet(pluginRespirator, md).asBucket();
 	}
 }
@@ -5,6 +5,7 @@ package plugins.KeyUtils;
 
 import plugins.KeyUtils.toadlets.AboutToadlet;
 import plugins.KeyUtils.toadlets.DownloadToadlet;
+import plugins.KeyUtils.toadlets.EditionExplorerToadlet;
 import plugins.KeyUtils.toadlets.ExtraToadlet;
 import plugins.KeyUtils.toadlets.FBlobToadlet;
 import plugins.KeyUtils.toadlets.KeyConverterToadlet;
@@ -85,6 +86,8 @@ public class KeyUtilsPlugin implements FredPlugin, FredPluginL10n, FredPluginFCP
 		webInterface.registerVisible(siteToadlet, PLUGIN_CATEGORY, "Menu.SiteExplorer.title", "Menu.SiteExplorer.tooltip");
 		SplitExplorerToadlet splitToadlet = new SplitExplorerToadlet(pluginContext, intl);
 		webInterface.registerVisible(splitToadlet, PLUGIN_CATEGORY, "Menu.SplitExplorer.title", "Menu.SplitExplorer.tooltip");
+		EditionExplorerToadlet editionToadlet = new EditionExplorerToadlet(pluginContext, intl);
+		webInterface.registerVisible(editionToadlet, PLUGIN_CATEGORY, "Menu.EditionExplorer.title", "Menu.EditionExplorer.tooltip");
 		ExtraToadlet extraToadlet = new ExtraToadlet(pluginContext, intl);
 		webInterface.registerVisible(extraToadlet, PLUGIN_CATEGORY, "Menu.ExtraCalculator.title", "Menu.ExtraCalculator.tooltip");
 		FBlobToadlet fblobToadlet = new FBlobToadlet(pluginContext, intl);
@@ -115,6 +118,7 @@ public class KeyUtilsPlugin implements FredPlugin, FredPluginL10n, FredPluginFCP
 		webInterface = null;
 		fcpHandler.kill();
 		fcpHandler = null;
+		KeyExplorerUtils.clearCaches();
 	}
 
 	@Override
@@ -0,0 +1,480 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import freenet.client.Metadata;
+import freenet.keys.FreenetURI;
+
+/**
+ * Compact list of the documents of a manifest walk, one entry per listed
+ * document (or error) in walk order.
+ *
+ * Everything needed to show and sort an entry is copied out of its
+ * metadata, the metadata itself is not kept. Paths are front coded: each
+ * path stores only the bytes that differ from its predecessor, every 16th
+ * path is stored in full. Types, flags, levels and sizes are held in
+ * primitive arrays, mime types and compression codecs in a shared symbol
+ * table, target keys in their binary form. Strings and URIs are only
+ * created when asked for.
+ *
+ * Apart from the names, texts and keys themselves an entry needs 32 bytes.
+ *
+ * Entries are added by a single thread while walking, the index may be
+ * read by that thread meanwhile. Once complete it is read only.
+ */
+public class ManifestIndex {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int RESTART_INTERVAL = 16;
+	private static final int MAX_SHARED = Character.MAX_VALUE;
+	private static final char NO_SYMBOL = Character.MAX_VALUE;
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The document type, see {@link KeyExplorerUtils#documentType(Metadata)}.
+	 * ERROR entries are error messages from the walk.
+	 */
+	public enum Type {
+		SRE, SMF, AIR, AMR, ARE, MLM, SYS, UNKNOWN, ERROR;
+
+		private static final Type[] VALUES = values();
+	}
+
+	public static final int FLAG_SPLITFILE = 1;
+	public static final int FLAG_COMPRESSED = 2;
+	public static final int FLAG_NO_MIME = 4;
+	public static final int FLAG_SINGLE_FILE = 8;
+	/** the last path component is empty or blank, e.g. the top level */
+	public static final int FLAG_NO_NAME = 16;
+	/** the target key could not be stored binary and is kept as string */
+	private static final int FLAG_TARGET_STRING = 32;
+
+	private int count;
+
+	private byte[] names = new byte[INITIAL_CAPACITY * 8];
+	private int namesLength;
+	/** start of the stored name bytes, one more than count */
+	private int[] nameStart = new int[INITIAL_CAPACITY + 1];
+	/** number of leading bytes shared with the previous path */
+	private char[] shared = new char[INITIAL_CAPACITY];
+	private byte[] previous = new byte[0];
+	private int maxPathLength;
+
+	private short[] nestedLevels = new short[INITIAL_CAPACITY];
+	private short[] subLevels = new short[INITIAL_CAPACITY];
+	private byte[] types = new byte[INITIAL_CAPACITY];
+	private byte[] flags = new byte[INITIAL_CAPACITY];
+	/** data size, the number of documents for a SMF, -1 if unknown */
+	private long[] sizes = new long[INITIAL_CAPACITY];
+	private char[] mimes = new char[INITIAL_CAPACITY];
+	private char[] codecs = new char[INITIAL_CAPACITY];
+
+	/** archive internal name, short link target, archive type or error message */
+	private byte[] texts = new byte[INITIAL_CAPACITY * 8];
+	private int textsLength;
+	private int[] textStart = new int[INITIAL_CAPACITY + 1];
+
+	private byte[] targets = new byte[INITIAL_CAPACITY * 8];
+	private int targetsLength;
+	private int[] targetStart = new int[INITIAL_CAPACITY + 1];
+
+	private final ArrayList<String> symbols = new ArrayList<String>();
+	private final HashMap<String, Integer> symbolIndex = new HashMap<String, Integer>();
+
+	/**
+	 * Add a document. Nothing of the metadata is kept.
+	 * @param prefix the path of the directory the document is in
+	 * @param name the name of the document in the directory
+	 */
+	public void add(String prefix, String name, Metadata md, int nestedLevel, int subLevel) {
+		int i = appendEntry(prefix + name, nestedLevel, subLevel);
+		Type type = typeOf(md);
+		int f = 0;
+		if (md.isSplitfile()) {
+			f |= FLAG_SPLITFILE;
+		}
+		if (md.isCompressed()) {
+			f |= FLAG_COMPRESSED;
+			codecs[i] = symbol(md.getCompressionCodec().name);
+			sizes[i] = md.uncompressedDataLength();
+		} else if (md.isSplitfile()) {
+			sizes[i] = md.dataLength();
+		}
+		if (md.isNoMimeEnabled()) {
+			f |= FLAG_NO_MIME;
+		} else {
+			mimes[i] = symbol(md.getMIMEType());
+		}
+		if (md.isSingleFileRedirect()) {
+			f |= FLAG_SINGLE_FILE;
+		}
+		if (name == null || name.trim().length() == 0) {
+			f |= FLAG_NO_NAME;
+		}
+
+		String text = null;
+		switch (type) {
+		case SMF:
+			sizes[i] = md.getDocuments().size();
+			break;
+		case AIR:
+		case AMR:
+			text = md.getArchiveInternalName();
+			break;
+		case SYS:
+			text = md.getSymbolicShortlinkTargetName();
+			break;
+		case ARE:
+			text = (md.getArchiveType() == null) ? null : md.getArchiveType().name();
+			break;
+		default:
+			break;
+		}
+		appendText(i, text);
+
+		FreenetURI target = md.getSingleTarget();
+		if (target != null && !appendTarget(target)) {
+			f |= FLAG_TARGET_STRING;
+		}
+		targetStart[i + 1] = targetsLength;
+		types[i] = (byte) type.ordinal();
+		flags[i] = (byte) f;
+		count++;
+	}
+
+	/**
+	 * Add an error row.
+	 */
+	public void addError(String message) {
+		int i = appendEntry("", -1, -1);
+		appendText(i, (message == null) ? "" : message);
+		targetStart[i + 1] = targetsLength;
+		types[i] = (byte) Type.ERROR.ordinal();
+		flags[i] = (byte) FLAG_NO_NAME;
+		count++;
+	}
+
+	/**
+	 * Done adding, release the spare capacity.
+	 */
+	public void trim() {
+		names = Arrays.copyOf(names, namesLength);
+		nameStart = Arrays.copyOf(nameStart, count + 1);
+		shared = Arrays.copyOf(shared, count);
+		nestedLevels = Arrays.copyOf(nestedLevels, count);
+		subLevels = Arrays.copyOf(subLevels, count);
+		types = Arrays.copyOf(types, count);
+		flags = Arrays.copyOf(flags, count);
+		sizes = Arrays.copyOf(sizes, count);
+		mimes = Arrays.copyOf(mimes, count);
+		codecs = Arrays.copyOf(codecs, count);
+		texts = Arrays.copyOf(texts, textsLength);
+		textStart = Arrays.copyOf(textStart, count + 1);
+		targets = Arrays.copyOf(targets, targetsLength);
+		targetStart = Arrays.copyOf(targetStart, count + 1);
+		previous = null;
+	}
+
+	private static Type typeOf(Metadata md) {
+		String type = KeyExplorerUtils.documentType(md);
+		return "?".equals(type) ? Type.UNKNOWN : Type.valueOf(type);
+	}
+
+	/**
+	 * Start a new entry with its path and levels, all other columns empty.
+	 * @return the index of the entry
+	 */
+	private int appendEntry(String path, int nestedLevel, int subLevel) {
+		if (previous == null) {
+			throw new IllegalStateException("Index is complete");
+		}
+		int i = count;
+		ensureCapacity(i + 1);
+		byte[] bytes = path.getBytes(UTF8);
+		int common = 0;
+		if (i % RESTART_INTERVAL != 0) {
+			int max = Math.min(MAX_SHARED, Math.min(bytes.length, previous.length));
+			while (common < max && bytes[common] == previous[common]) {
+				common++;
+			}
+		}
+		shared[i] = (char) common;
+		nameStart[i] = namesLength;
+		int length = bytes.length - common;
+		if (namesLength + length > names.length) {
+			names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + length));
+		}
+		System.arraycopy(bytes, common, names, namesLength, length);
+		namesLength += length;
+		nameStart[i + 1] = namesLength;
+		previous = bytes;
+		maxPathLength = Math.max(maxPathLength, bytes.length);
+
+		nestedLevels[i] = (short) nestedLevel;
+		subLevels[i] = (short) subLevel;
+		sizes[i] = -1;
+		mimes[i] = NO_SYMBOL;
+		codecs[i] = NO_SYMBOL;
+		targetStart[i] = targetsLength;
+		return i;
+	}
+
+	private void appendText(int i, String text) {
+		textStart[i] = textsLength;
+		if (text != null) {
+			byte[] bytes = text.getBytes(UTF8);
+			texts = append(texts, textsLength, bytes);
+			textsLength += bytes.length;
+		}
+		textStart[i + 1] = textsLength;
+	}
+
+	/**
+	 * @return false if the key was stored as string
+	 */
+	private boolean appendTarget(FreenetURI target) {
+		byte[] bytes;
+		boolean binary;
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			target.writeFullBinaryKeyWithLength(dos);
+			dos.flush();
+			bytes = bos.toByteArray();
+			binary = true;
+		} catch (IOException e) {
+			// not a key type with a binary form
+			bytes = target.toString(false, false).getBytes(UTF8);
+			binary = false;
+		}
+		targets = append(targets, targetsLength, bytes);
+		targetsLength += bytes.length;
+		return binary;
+	}
+
+	/**
+	 * @return buf, or a bigger copy of it if bytes do not fit behind length
+	 */
+	private static byte[] append(byte[] buf, int length, byte[] bytes) {
+		if (length + bytes.length > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + bytes.length));
+		}
+		System.arraycopy(bytes, 0, buf, length, bytes.length);
+		return buf;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= shared.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, shared.length * 2);
+		nameStart = Arrays.copyOf(nameStart, newCapacity + 1);
+		shared = Arrays.copyOf(shared, newCapacity);
+		nestedLevels = Arrays.copyOf(nestedLevels, newCapacity);
+		subLevels = Arrays.copyOf(subLevels, newCapacity);
+		types = Arrays.copyOf(types, newCapacity);
+		flags = Arrays.copyOf(flags, newCapacity);
+		sizes = Arrays.copyOf(sizes, newCapacity);
+		mimes = Arrays.copyOf(mimes, newCapacity);
+		codecs = Arrays.copyOf(codecs, newCapacity);
+		textStart = Arrays.copyOf(textStart, newCapacity + 1);
+		targetStart = Arrays.copyOf(targetStart, newCapacity + 1);
+	}
+
+	private char symbol(String s) {
+		if (s == null) {
+			return NO_SYMBOL;
+		}
+		Integer index = symbolIndex.get(s);
+		if (index == null) {
+			if (symbols.size() >= NO_SYMBOL) {
+				// more distinct mime types than any sane site has
+				return NO_SYMBOL;
+			}
+			index = symbols.size();
+			symbols.add(s);
+			symbolIndex.put(s, index);
+		}
+		return (char) index.intValue();
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the full path of the entry, directory prefix and name
+	 */
+	public String getPath(int i) {
+		checkIndex(i);
+		byte[] buf = new byte[maxPathLength];
+		int length = 0;
+		for (int j = i - (i % RESTART_INTERVAL); j <= i; j++) {
+			length = appendPath(j, buf);
+		}
+		return new String(buf, 0, length, UTF8);
+	}
+
+	/**
+	 * @return the paths of all entries, cheaper than asking one by one
+	 */
+	public String[] getPaths() {
+		String[] paths = new String[count];
+		byte[] buf = new byte[maxPathLength];
+		for (int i = 0; i < count; i++) {
+			paths[i] = new String(buf, 0, appendPath(i, buf), UTF8);
+		}
+		return paths;
+	}
+
+	public Type getType(int i) {
+		checkIndex(i);
+		return Type.VALUES[types[i]];
+	}
+
+	/**
+	 * @return a combination of the FLAG_ constants
+	 */
+	public int getFlags(int i) {
+		checkIndex(i);
+		return flags[i] & ~FLAG_TARGET_STRING;
+	}
+
+	public boolean hasFlag(int i, int flag) {
+		return (getFlags(i) & flag) != 0;
+	}
+
+	public int getNestedLevel(int i) {
+		checkIndex(i);
+		return nestedLevels[i];
+	}
+
+	/**
+	 * @return the level inside the manifest, -1 for its root
+	 */
+	public int getSubLevel(int i) {
+		checkIndex(i);
+		return subLevels[i];
+	}
+
+	/**
+	 * @return the (uncompressed) size of the data, -1 if unknown
+	 */
+	public long getSize(int i) {
+		checkIndex(i);
+		return (types[i] == Type.SMF.ordinal()) ? -1 : sizes[i];
+	}
+
+	/**
+	 * @return the number of documents of a simple manifest, -1 for other types
+	 */
+	public int getDocumentCount(int i) {
+		checkIndex(i);
+		return (types[i] == Type.SMF.ordinal()) ? (int) sizes[i] : -1;
+	}
+
+	/**
+	 * @return the mime type, null if there is none (see also {@link #FLAG_NO_MIME})
+	 */
+	public String getMimeType(int i) {
+		checkIndex(i);
+		return symbolAt(mimes[i]);
+	}
+
+	/**
+	 * @return the name of the compression codec, null if not compressed
+	 */
+	public String getCompressionCodec(int i) {
+		checkIndex(i);
+		return symbolAt(codecs[i]);
+	}
+
+	/**
+	 * @return the archive internal name (AIR, AMR), the short link target
+	 *  (SYS), the archive type (ARE) or the error message (ERROR), null
+	 *  for other types
+	 */
+	public String getText(int i) {
+		checkIndex(i);
+		Type type = Type.VALUES[types[i]];
+		if (type != Type.AIR && type != Type.AMR && type != Type.SYS && type != Type.ARE && type != Type.ERROR) {
+			return null;
+		}
+		return new String(texts, textStart[i], textStart[i + 1] - textStart[i], UTF8);
+	}
+
+	public boolean hasTarget(int i) {
+		checkIndex(i);
+		return targetStart[i + 1] > targetStart[i];
+	}
+
+	/**
+	 * Create the URI of the single target.
+	 * @return the URI, null if the document has none
+	 */
+	public FreenetURI getTarget(int i) throws MalformedURLException {
+		checkIndex(i);
+		int start = targetStart[i];
+		int length = targetStart[i + 1] - start;
+		if (length == 0) {
+			return null;
+		}
+		if ((flags[i] & FLAG_TARGET_STRING) != 0) {
+			return new FreenetURI(new String(targets, start, length, UTF8));
+		}
+		try {
+			return FreenetURI.readFullBinaryKeyWithLength(new DataInputStream(new ByteArrayInputStream(targets, start, length)));
+		} catch (MalformedURLException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new IllegalStateException("Impossible? Failed to read key from memory", e);
+		}
+	}
+
+	/**
+	 * @return a rough estimate of the memory used by the index
+	 */
+	public long getEstimatedSize() {
+		long size = names.length + texts.length + targets.length;
+		size += 32L * shared.length;
+		for (String s : symbols) {
+			size += 40 + 2 * s.length();
+		}
+		return size;
+	}
+
+	private String symbolAt(char symbol) {
+		return (symbol == NO_SYMBOL) ? null : symbols.get(symbol);
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= count) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+		}
+	}
+
+	/**
+	 * Apply the stored bytes of path i to buf, which has to hold path i-1
+	 * unless i is a restart point.
+	 * @return the length of path i
+	 */
+	private int appendPath(int i, byte[] buf) {
+		int start = nameStart[i];
+		int length = nameStart[i + 1] - start;
+		System.arraycopy(names, start, buf, shared[i], length);
+		return shared[i] + length;
+	}
+}
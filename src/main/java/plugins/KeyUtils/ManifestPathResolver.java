@@ -0,0 +1,272 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.util.HashMap;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.client.Metadata;
+import freenet.keys.FreenetURI;
+import freenet.pluginmanager.PluginRespirator;
+import freenet.support.Logger;
+
+/**
+ * Resolves paths inside a site one component at a time.
+ *
+ * The documents looked at are kept in a trie, one node per path component.
+ * Sub metadata (multi level metadata, containers) is only fetched for the
+ * nodes a path goes through, and only once per resolver; later lookups
+ * below the same node reuse it.
+ */
+public class ManifestPathResolver {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ManifestPathResolver.class);
+	}
+
+	/**
+	 * The document a path resolved to.
+	 */
+	public static class Resolution {
+
+		private final Metadata md;
+		private final String path;
+		private final int nestedLevel;
+
+		Resolution(Metadata md2, String path2, int nestedLevel2) {
+			md = md2;
+			path = path2;
+			nestedLevel = nestedLevel2;
+		}
+
+		/**
+		 * @return the metadata of the document, do not modify it
+		 */
+		public Metadata getMetadata() {
+			return md;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return the number of sub metadata fetched on the way
+		 */
+		public int getNestedLevel() {
+			return nestedLevel;
+		}
+	}
+
+	private static class Node {
+
+		private final Metadata md;
+		private HashMap<String, Node> children;
+		/** sub metadata, null if not fetched yet or the fetch failed */
+		private FetchHandle<Node> sub;
+
+		Node(Metadata md2) {
+			md = md2;
+		}
+
+		/**
+		 * @return the document in this manifest, null if there is none
+		 */
+		synchronized Node child(String name) {
+			if (children == null) {
+				children = new HashMap<String, Node>();
+			}
+			Node child = children.get(name);
+			if (child == null) {
+				Metadata doc = (name.length() == 0) ? md.getDefaultDocument() : md.getDocument(name);
+				if (doc == null) {
+					return null;
+				}
+				child = new Node(doc);
+				children.put(name, child);
+			}
+			return child;
+		}
+	}
+
+	private final PluginRespirator pr;
+	private final FreenetURI uri;
+	private final Node root;
+
+	/**
+	 * @param uri the URI the manifest was fetched from
+	 * @param manifest the top level manifest of the site, it is not modified
+	 */
+	public ManifestPathResolver(PluginRespirator pr2, FreenetURI uri2, Metadata manifest) {
+		pr = pr2;
+		uri = uri2;
+		root = new Node(manifest);
+	}
+
+	/**
+	 * Fetch the top level manifest of a site, the kind of manifest (simple,
+	 * multi level, ZIP or TAR container) is detected.
+	 */
+	public static FetchHandle<ManifestPathResolver> openAsync(final PluginRespirator pr, final FreenetURI uri, FetchCallback<ManifestPathResolver> cb) {
+		final FetchHandle<ManifestPathResolver> handle = new FetchHandle<ManifestPathResolver>(cb);
+		final FetchCallback<Metadata> opened = new FetchCallback<Metadata>() {
+			@Override
+			public void onSuccess(Metadata md) {
+				if (md.isSimpleManifest()) {
+					handle.onSuccess(new ManifestPathResolver(pr, uri, md));
+				} else {
+					handle.onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, "Metadata is not a site."));
+				}
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				handle.onFailure(e);
+			}
+		};
+		KeyExplorerUtils.simpleManifestGetAsync(pr, uri, new FetchCallback<Metadata>() {
+			@Override
+			public void onSuccess(Metadata md) {
+				if (md.isArchiveManifest()) {
+					if (md.getArchiveType() == ARCHIVE_TYPE.TAR) {
+						KeyExplorerUtils.tarManifestGetAsync(pr, uri, ".metadata", opened);
+					} else if (md.getArchiveType() == ARCHIVE_TYPE.ZIP) {
+						KeyExplorerUtils.zipManifestGetAsync(pr, uri, opened);
+					} else {
+						handle.onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, "Unknown Archive Type: " + md.getArchiveType().name()));
+					}
+				} else if (md.isMultiLevelMetadata()) {
+					KeyExplorerUtils.splitManifestGetAsync(pr, md, opened);
+				} else {
+					opened.onSuccess(md);
+				}
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				handle.onFailure(e);
+			}
+		});
+		return handle;
+	}
+
+	public FreenetURI getURI() {
+		return uri;
+	}
+
+	public Resolution resolve(String path) throws FetchException {
+		return resolveAsync(path, null).waitForCompletion();
+	}
+
+	/**
+	 * Resolve a path like "docs/api/index.html". A trailing '/' resolves to
+	 * the default document of the directory, an empty path to the top level
+	 * manifest.
+	 *
+	 * Fails with NOT_IN_ARCHIVE if a component does not exist and with
+	 * TOO_MANY_PATH_COMPONENTS if the path goes on below a plain document.
+	 */
+	public FetchHandle<Resolution> resolveAsync(String path, FetchCallback<Resolution> cb) {
+		FetchHandle<Resolution> handle = new FetchHandle<Resolution>(cb);
+		if (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		String[] components = (path.length() == 0) ? new String[0] : path.split("/", -1);
+		resolve(root, components, 0, 0, handle);
+		return handle;
+	}
+
+	private void resolve(Node node, final String[] components, int pos, int nestedLevel, final FetchHandle<Resolution> handle) {
+		while (true) {
+			Metadata md = node.md;
+			if (md.isSimpleManifest()) {
+				if (pos == components.length) {
+					handle.onSuccess(new Resolution(md, join(components, pos), nestedLevel));
+					return;
+				}
+				Node child = node.child(components[pos]);
+				if (child == null) {
+					handle.onFailure(new FetchException(FetchExceptionMode.NOT_IN_ARCHIVE, "Not found: " + join(components, pos + 1)));
+					return;
+				}
+				node = child;
+				pos++;
+				continue;
+			}
+			if (pos < components.length && KeyExplorerUtils.hasSubMetadata(md)) {
+				// the path goes on inside, continue once the sub metadata is there
+				final int nextPos = pos;
+				final int nextLevel = nestedLevel + 1;
+				subMetadata(node, new FetchCallback<Node>() {
+					@Override
+					public void onSuccess(Node sub) {
+						resolve(sub, components, nextPos, nextLevel, handle);
+					}
+
+					@Override
+					public void onFailure(FetchException e) {
+						handle.onFailure(e);
+					}
+				});
+				return;
+			}
+			if (pos == components.length) {
+				handle.onSuccess(new Resolution(md, join(components, pos), nestedLevel));
+			} else {
+				handle.onFailure(new FetchException(FetchExceptionMode.TOO_MANY_PATH_COMPONENTS, "Not a directory: " + join(components, pos)));
+			}
+			return;
+		}
+	}
+
+	private void subMetadata(final Node node, FetchCallback<Node> cb) {
+		final FetchHandle<Node> sub;
+		boolean start = false;
+		synchronized (node) {
+			if (node.sub == null) {
+				node.sub = new FetchHandle<Node>();
+				start = true;
+			}
+			sub = node.sub;
+		}
+		sub.addCallback(cb);
+		if (!start) {
+			return;
+		}
+		if (logMINOR) Logger.minor(this, "Fetching sub metadata of " + KeyExplorerUtils.documentType(node.md) + " in " + uri);
+		// a split file fetch consumes the segment keys, keep the node usable for retries
+		KeyExplorerUtils.subMetadataGetAsync(pr, (Metadata) node.md.clone(), uri, new FetchCallback<Metadata>() {
+			@Override
+			public void onSuccess(Metadata subMd) {
+				sub.onSuccess(new Node(subMd));
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				// do not remember failures, the next lookup will try again
+				synchronized (node) {
+					if (node.sub == sub) {
+						node.sub = null;
+					}
+				}
+				sub.onFailure(e);
+			}
+		});
+	}
+
+	private static String join(String[] components, int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append('/');
+			}
+			sb.append(components[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,166 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import freenet.client.Metadata;
+import freenet.client.MetadataParseException;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+/**
+ * Cache of fetched top level blocks and the metadata parsed from them.
+ *
+ * Only keys with immutable content (CHK, SSK) are cached. The cache is
+ * bounded by an estimated memory size and drops the least recently used
+ * entries first.
+ *
+ * Parsed metadata is handed out as a clone, fetching a split file from
+ * it consumes the segment keys.
+ */
+public class MetadataCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(MetadataCache.class);
+	}
+
+	/** rough guess of the per entry overhead (key, map entry, objects) */
+	private static final int ENTRY_OVERHEAD = 256;
+	/** rough guess of parsed metadata size compared to its serialized form */
+	private static final int PARSED_FACTOR = 3;
+
+	private static class CachedBlock {
+		private final byte[] data;
+		private final boolean isMetaData;
+		private Metadata parsed;
+
+		CachedBlock(byte[] data2, boolean isMetaData2) {
+			data = data2;
+			isMetaData = isMetaData2;
+		}
+
+		long estimatedSize(String key) {
+			long size = ENTRY_OVERHEAD + key.length() * 2 + data.length;
+			if (parsed != null) {
+				size += data.length * PARSED_FACTOR;
+			}
+			return size;
+		}
+	}
+
+	private final long maxSize;
+	private final LinkedHashMap<String, CachedBlock> blocks = new LinkedHashMap<String, CachedBlock>(64, 0.75f, true);
+	private long currentSize;
+
+	public MetadataCache(long maxSize2) {
+		maxSize = maxSize2;
+	}
+
+	/**
+	 * @return a copy of the cached top level block, null if not cached
+	 */
+	public GetResult get(FreenetURI uri) {
+		if (!KeyExplorerUtils.isImmutable(uri)) {
+			return null;
+		}
+		CachedBlock block;
+		synchronized (this) {
+			block = blocks.get(uri.toString(false, false));
+		}
+		if (block == null) {
+			return null;
+		}
+		if (logMINOR) Logger.minor(this, "Cache hit for " + uri);
+		return new GetResult(new ArrayBucket(block.data), block.isMetaData);
+	}
+
+	/**
+	 * @return a clone of the cached metadata, null if not cached or the block is not metadata
+	 */
+	public Metadata getMetadata(FreenetURI uri) {
+		if (!KeyExplorerUtils.isImmutable(uri)) {
+			return null;
+		}
+		String key = uri.toString(false, false);
+		CachedBlock block;
+		synchronized (this) {
+			block = blocks.get(key);
+			if (block == null || !block.isMetaData) {
+				return null;
+			}
+			if (block.parsed != null) {
+				return (Metadata) block.parsed.clone();
+			}
+		}
+		Metadata md;
+		try {
+			md = Metadata.construct(block.data);
+		} catch (MetadataParseException e) {
+			// let the caller fetch and fail the usual way
+			return null;
+		}
+		synchronized (this) {
+			if (block.parsed == null && blocks.get(key) == block) {
+				currentSize -= block.estimatedSize(key);
+				block.parsed = md;
+				currentSize += block.estimatedSize(key);
+				trim();
+			}
+		}
+		return (Metadata) md.clone();
+	}
+
+	/**
+	 * Remember a fetched top level block. The result itself is not
+	 * modified, the caller keeps ownership.
+	 */
+	public void put(FreenetURI uri, GetResult result) {
+		if (result == null || !KeyExplorerUtils.isImmutable(uri)) {
+			return;
+		}
+		long size = result.getData().size();
+		if (size < 0 || size > maxSize / 16) {
+			return;
+		}
+		byte[] data;
+		try {
+			data = BucketTools.toByteArray(result.getData());
+		} catch (IOException e) {
+			Logger.error(this, "Failed to read result for caching: " + e, e);
+			return;
+		}
+		String key = uri.toString(false, false);
+		CachedBlock block = new CachedBlock(data, result.isMetaData());
+		synchronized (this) {
+			CachedBlock old = blocks.put(key, block);
+			if (old != null) {
+				currentSize -= old.estimatedSize(key);
+			}
+			currentSize += block.estimatedSize(key);
+			trim();
+		}
+	}
+
+	public synchronized void clear() {
+		blocks.clear();
+		currentSize = 0;
+	}
+
+	private void trim() {
+		Iterator<Entry<String, CachedBlock>> it = blocks.entrySet().iterator();
+		while (currentSize > maxSize && it.hasNext()) {
+			Entry<String, CachedBlock> entry = it.next();
+			currentSize -= entry.getValue().estimatedSize(entry.getKey());
+			it.remove();
+		}
+	}
+}
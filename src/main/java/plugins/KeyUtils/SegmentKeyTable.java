@@ -0,0 +1,174 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.util.Arrays;
+
+import freenet.client.async.SplitFileSegmentKeys;
+import freenet.keys.ClientCHK;
+import freenet.keys.FreenetURI;
+import freenet.keys.NodeCHK;
+
+/**
+ * Compact read only table of the block keys of a splitfile.
+ *
+ * Routing keys and crypto keys of all blocks are held in two flat byte
+ * arrays, in segment order and the data blocks of a segment before its
+ * check blocks. If all blocks share one crypto key (the usual case since
+ * splitfile keys are derived from a common key) it is stored only once.
+ * Key objects and URIs are only created when asked for.
+ *
+ * A block needs 64 bytes, 32 if the crypto key is shared.
+ */
+public class SegmentKeyTable {
+
+	/** length of routing and crypto keys of a CHK */
+	public static final int KEY_LENGTH = 32;
+
+	private final int segmentCount;
+	/** index of the first block of a segment, one more than the segment count */
+	private final int[] blockStart;
+	private final int[] dataBlocks;
+	private final byte[] routingKeys;
+	private final byte[] cryptoKeys;
+	/** true if cryptoKeys holds a single key for all blocks */
+	private final boolean commonCryptoKey;
+	private final byte cryptoAlgorithm;
+
+	private SegmentKeyTable(int[] blockStart2, int[] dataBlocks2, byte[] routingKeys2, byte[] cryptoKeys2, boolean commonCryptoKey2, byte cryptoAlgorithm2) {
+		segmentCount = dataBlocks2.length;
+		blockStart = blockStart2;
+		dataBlocks = dataBlocks2;
+		routingKeys = routingKeys2;
+		cryptoKeys = cryptoKeys2;
+		commonCryptoKey = commonCryptoKey2;
+		cryptoAlgorithm = cryptoAlgorithm2;
+	}
+
+	/**
+	 * Copy the keys out of the decoded segments, they are not modified.
+	 * @throws IllegalArgumentException if a key is not a regular CHK
+	 */
+	public static SegmentKeyTable build(SplitFileSegmentKeys[] segments) {
+		int[] blockStart = new int[segments.length + 1];
+		int[] dataBlocks = new int[segments.length];
+		for (int s = 0; s < segments.length; s++) {
+			dataBlocks[s] = segments[s].getDataBlocks();
+			blockStart[s + 1] = blockStart[s] + segments[s].getTotalBlocks();
+		}
+		int blocks = blockStart[segments.length];
+		byte[] routingKeys = new byte[blocks * KEY_LENGTH];
+		byte[] cryptoKeys = new byte[blocks * KEY_LENGTH];
+		boolean common = true;
+		byte algo = 0;
+		int block = 0;
+		for (SplitFileSegmentKeys segment : segments) {
+			int total = segment.getTotalBlocks();
+			for (int i = 0; i < total; i++) {
+				ClientCHK key = segment.getKey(i, null, false);
+				if (block == 0) {
+					algo = key.getCryptoAlgorithm();
+				} else if (key.getCryptoAlgorithm() != algo) {
+					throw new IllegalArgumentException("Mixed crypto algorithms in segment keys");
+				}
+				copyKey(key.getRoutingKey(), routingKeys, block);
+				copyKey(key.getCryptoKey(), cryptoKeys, block);
+				if (common && block > 0 && !sameKey(cryptoKeys, 0, block)) {
+					common = false;
+				}
+				block++;
+			}
+		}
+		if (common && blocks > 0) {
+			cryptoKeys = Arrays.copyOf(cryptoKeys, KEY_LENGTH);
+		}
+		return new SegmentKeyTable(blockStart, dataBlocks, routingKeys, cryptoKeys, common, algo);
+	}
+
+	private static void copyKey(byte[] key, byte[] table, int block) {
+		if (key == null || key.length != KEY_LENGTH) {
+			throw new IllegalArgumentException("Not a CHK key");
+		}
+		System.arraycopy(key, 0, table, block * KEY_LENGTH, KEY_LENGTH);
+	}
+
+	private static boolean sameKey(byte[] table, int a, int b) {
+		int offsetA = a * KEY_LENGTH;
+		int offsetB = b * KEY_LENGTH;
+		for (int i = 0; i < KEY_LENGTH; i++) {
+			if (table[offsetA + i] != table[offsetB + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * @return the number of blocks in all segments
+	 */
+	public int getBlockCount() {
+		return blockStart[segmentCount];
+	}
+
+	public int getDataBlocks(int segment) {
+		checkSegment(segment);
+		return dataBlocks[segment];
+	}
+
+	public int getCheckBlocks(int segment) {
+		return getTotalBlocks(segment) - dataBlocks[segment];
+	}
+
+	public int getTotalBlocks(int segment) {
+		checkSegment(segment);
+		return blockStart[segment + 1] - blockStart[segment];
+	}
+
+	/**
+	 * @param block the block in the segment, check blocks follow the data blocks
+	 */
+	public ClientCHK getKey(int segment, int block) {
+		int b = blockIndex(segment, block);
+		int cryptoOffset = commonCryptoKey ? 0 : b * KEY_LENGTH;
+		// splitfile blocks are never compressed on their own and never metadata
+		return new ClientCHK(Arrays.copyOfRange(routingKeys, b * KEY_LENGTH, (b + 1) * KEY_LENGTH), Arrays.copyOfRange(cryptoKeys, cryptoOffset, cryptoOffset + KEY_LENGTH), false, cryptoAlgorithm, (short) -1);
+	}
+
+	/**
+	 * @return the key as the node stores it, cheaper than {@link #getKey(int, int)}
+	 */
+	public NodeCHK getNodeKey(int segment, int block) {
+		int b = blockIndex(segment, block);
+		return new NodeCHK(Arrays.copyOfRange(routingKeys, b * KEY_LENGTH, (b + 1) * KEY_LENGTH), cryptoAlgorithm);
+	}
+
+	public FreenetURI getURI(int segment, int block) {
+		return getKey(segment, block).getURI();
+	}
+
+	/**
+	 * @return a rough estimate of the memory used by the table
+	 */
+	public long getEstimatedSize() {
+		return routingKeys.length + cryptoKeys.length + 4L * (blockStart.length + dataBlocks.length);
+	}
+
+	private int blockIndex(int segment, int block) {
+		int total = getTotalBlocks(segment);
+		if (block < 0 || block >= total) {
+			throw new IndexOutOfBoundsException("Block: " + block + ", Blocks: " + total);
+		}
+		return blockStart[segment] + block;
+	}
+
+	private void checkSegment(int segment) {
+		if (segment < 0 || segment >= segmentCount) {
+			throw new IndexOutOfBoundsException("Segment: " + segment + ", Segments: " + segmentCount);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.support.Logger;
+
+/**
+ * Lets concurrent identical fetches share one request.
+ *
+ * The first caller for a key starts the {@link Operation}, later callers
+ * attach to it until it completes. Every caller gets its own handle and
+ * its own copy of the result, so each can free it independently; the
+ * last one to be notified gets the original.
+ */
+public class SingleFlight<T> {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SingleFlight.class);
+	}
+
+	public static abstract class Operation<T> {
+
+		/** start the fetch, the callback must be called exactly once */
+		protected abstract void start(FetchCallback<T> cb);
+
+		/** @return an independent copy of the result */
+		protected abstract T copy(T result) throws IOException;
+
+		protected abstract void free(T result);
+	}
+
+	private class Flight implements FetchCallback<T> {
+
+		private final String key;
+		private final Operation<T> operation;
+		private final FetchHandle<T> shared = new FetchHandle<T>();
+		private int waiters;
+
+		Flight(String key2, Operation<T> operation2) {
+			key = key2;
+			operation = operation2;
+			// first callback, nobody can join once the result is handed out
+			shared.addCallback(this);
+		}
+
+		@Override
+		public void onSuccess(T result) {
+			remove(this);
+		}
+
+		@Override
+		public void onFailure(FetchException e) {
+			remove(this);
+		}
+	}
+
+	private final HashMap<String, Flight> flights = new HashMap<String, Flight>();
+
+	/**
+	 * Run the operation, or attach to an identical one still in progress.
+	 *
+	 * @param key identifies the operation and its parameters
+	 */
+	public FetchHandle<T> fetch(String key, Operation<T> operation, FetchCallback<T> cb) {
+		final FetchHandle<T> handle = new FetchHandle<T>(cb);
+		final Flight flight;
+		boolean start = false;
+		synchronized (this) {
+			Flight existing = flights.get(key);
+			if (existing == null) {
+				flight = new Flight(key, operation);
+				flights.put(key, flight);
+				start = true;
+			} else {
+				flight = existing;
+				if (logMINOR) Logger.minor(this, "Joining fetch in progress: " + key);
+			}
+			flight.waiters++;
+		}
+		flight.shared.addCallback(new FetchCallback<T>() {
+			@Override
+			public void onSuccess(T result) {
+				boolean original = false;
+				synchronized (SingleFlight.this) {
+					if (flight.waiters == 1) {
+						// nobody else is left, take the original
+						flight.waiters = 0;
+						original = true;
+					}
+				}
+				if (original) {
+					handle.onSuccess(result);
+					return;
+				}
+				T copy = null;
+				try {
+					copy = flight.operation.copy(result);
+				} catch (IOException e) {
+					handle.onFailure(new FetchException(FetchExceptionMode.BUCKET_ERROR, e));
+				} catch (RuntimeException e) {
+					// the waiter must complete in any case
+					Logger.error(SingleFlight.this, "Failed to copy result: " + e, e);
+					handle.onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, e));
+				} finally {
+					boolean last;
+					synchronized (SingleFlight.this) {
+						last = (--flight.waiters == 0);
+					}
+					if (last) {
+						flight.operation.free(result);
+					}
+				}
+				if (copy != null) {
+					handle.onSuccess(copy);
+				}
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				handle.onFailure(e);
+			}
+		});
+		if (start) {
+			operation.start(flight.shared);
+		}
+		return handle;
+	}
+
+	private synchronized void remove(Flight flight) {
+		if (flights.get(flight.key) == flight) {
+			flights.remove(flight.key);
+		}
+	}
+}
@@ -0,0 +1,419 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.client.Metadata;
+import freenet.client.MetadataUnresolvedException;
+import freenet.keys.FreenetURI;
+import freenet.pluginmanager.PluginRespirator;
+import freenet.support.Logger;
+
+/**
+ * Compares two sites, typically two editions of the same USK.
+ *
+ * Documents are compared by their metadata, which holds the target keys,
+ * sizes and mime types. Identical sub manifests, containers and multi
+ * level metadata are skipped without fetching anything below them, only
+ * differing ones are fetched (both sides at the same time) and compared
+ * further.
+ *
+ * Documents inside a container are only described by their name in the
+ * container. If the container differs they are reported as
+ * {@link ChangeType#UNVERIFIED}, their content is not compared.
+ */
+public class SiteDiff {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SiteDiff.class);
+	}
+
+	public enum ChangeType {
+		ADDED,
+		REMOVED,
+		CHANGED,
+		/** same metadata, but inside a changed container */
+		UNVERIFIED
+	}
+
+	public static class Change {
+
+		private final ChangeType type;
+		private final String path;
+		private final Metadata oldMd;
+		private final Metadata newMd;
+
+		Change(ChangeType type2, String path2, Metadata oldMd2, Metadata newMd2) {
+			type = type2;
+			path = path2;
+			oldMd = oldMd2;
+			newMd = newMd2;
+		}
+
+		public ChangeType getType() {
+			return type;
+		}
+
+		/**
+		 * @return the path of the document, a trailing '/' stands for the default document
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/** @return the old document, null if it was added */
+		public Metadata getOldMetadata() {
+			return oldMd;
+		}
+
+		/** @return the new document, null if it was removed */
+		public Metadata getNewMetadata() {
+			return newMd;
+		}
+	}
+
+	public static class Result {
+
+		private final List<Change> changes;
+		private final List<String> errors;
+		private final int skipped;
+
+		Result(List<Change> changes2, List<String> errors2, int skipped2) {
+			changes = changes2;
+			errors = errors2;
+			skipped = skipped2;
+		}
+
+		/**
+		 * @return the changes ordered by path
+		 */
+		public List<Change> getChanges() {
+			return changes;
+		}
+
+		/**
+		 * @return sub metadata that could not be fetched, the document is reported as changed
+		 */
+		public List<String> getErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return the number of identical sub manifests and containers that were not looked into
+		 */
+		public int getSkipped() {
+			return skipped;
+		}
+	}
+
+	/** top level manifest of one side */
+	private static class Site {
+		final Metadata manifest;
+		/** identity of the container the manifest is in, null if none */
+		final byte[] container;
+
+		Site(Metadata manifest2, byte[] container2) {
+			manifest = manifest2;
+			container = container2;
+		}
+	}
+
+	private SiteDiff() {
+	}
+
+	public static Result diff(PluginRespirator pr, FreenetURI oldUri, FreenetURI newUri) throws FetchException {
+		return diffAsync(pr, oldUri, newUri, Configuration.getDeepParallelism(), null).waitForCompletion();
+	}
+
+	/**
+	 * @param parallelism the number of sub metadata fetches running at the same time
+	 */
+	public static FetchHandle<Result> diffAsync(PluginRespirator pr, FreenetURI oldUri, FreenetURI newUri, int parallelism, FetchCallback<Result> cb) {
+		final FetchHandle<Result> handle = new FetchHandle<Result>(cb);
+		final Diff diff = new Diff(pr, oldUri, newUri, parallelism, handle);
+		// both sides at the same time
+		final FetchHandle<Site> oldSite = openAsync(pr, oldUri);
+		final FetchHandle<Site> newSite = openAsync(pr, newUri);
+		oldSite.addCallback(new FetchCallback<Site>() {
+			@Override
+			public void onSuccess(final Site oldResult) {
+				newSite.addCallback(new FetchCallback<Site>() {
+					@Override
+					public void onSuccess(Site newResult) {
+						diff.start(oldResult, newResult);
+					}
+
+					@Override
+					public void onFailure(FetchException e) {
+						handle.onFailure(e);
+					}
+				});
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				handle.onFailure(e);
+			}
+		});
+		return handle;
+	}
+
+	/**
+	 * Fetch the top level manifest, the kind of manifest is detected.
+	 */
+	private static FetchHandle<Site> openAsync(final PluginRespirator pr, final FreenetURI uri) {
+		final FetchHandle<Site> handle = new FetchHandle<Site>();
+		KeyExplorerUtils.simpleManifestGetAsync(pr, uri, new FetchCallback<Metadata>() {
+			@Override
+			public void onSuccess(Metadata md) {
+				byte[] container = null;
+				FetchHandle<Metadata> manifest;
+				if (md.isArchiveManifest()) {
+					container = identity(md);
+					if (md.getArchiveType() == ARCHIVE_TYPE.TAR) {
+						manifest = KeyExplorerUtils.tarManifestGetAsync(pr, uri, ".metadata", null);
+					} else if (md.getArchiveType() == ARCHIVE_TYPE.ZIP) {
+						manifest = KeyExplorerUtils.zipManifestGetAsync(pr, uri, null);
+					} else {
+						handle.onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, "Unknown Archive Type: " + md.getArchiveType().name()));
+						return;
+					}
+				} else if (md.isMultiLevelMetadata()) {
+					manifest = KeyExplorerUtils.splitManifestGetAsync(pr, md, null);
+				} else {
+					manifest = new FetchHandle<Metadata>();
+					manifest.onSuccess(md);
+				}
+				final byte[] c = container;
+				manifest.addCallback(new FetchCallback<Metadata>() {
+					@Override
+					public void onSuccess(Metadata result) {
+						if (result.isSimpleManifest()) {
+							handle.onSuccess(new Site(result, c));
+						} else {
+							handle.onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, "Metadata is not a site: " + uri));
+						}
+					}
+
+					@Override
+					public void onFailure(FetchException e) {
+						handle.onFailure(e);
+					}
+				});
+			}
+
+			@Override
+			public void onFailure(FetchException e) {
+				handle.onFailure(e);
+			}
+		});
+		return handle;
+	}
+
+	/**
+	 * @return the serialized metadata, null if it can not be serialized
+	 */
+	private static byte[] identity(Metadata md) {
+		try {
+			return md.writeToByteArray();
+		} catch (MetadataUnresolvedException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the meaning of the document depends on the container it is in
+	 */
+	private static boolean inContainer(Metadata md) {
+		return md.isSimpleManifest() || md.isArchiveInternalRedirect() || md.isArchiveMetadataRedirect();
+	}
+
+	private static Metadata getDocument(Metadata manifest, String name) {
+		return (name.length() == 0) ? manifest.getDefaultDocument() : manifest.getDocument(name);
+	}
+
+	/**
+	 * Fetches the sub metadata of one side.
+	 */
+	private static class SubMetadataJob implements FetchQueue.Job<Metadata> {
+
+		private final PluginRespirator pr;
+		private final Metadata md;
+		private final FreenetURI uri;
+
+		SubMetadataJob(PluginRespirator pr2, Metadata md2, FreenetURI uri2) {
+			pr = pr2;
+			md = md2;
+			uri = uri2;
+		}
+
+		@Override
+		public void start(FetchCallback<Metadata> cb) {
+			// a split file fetch consumes the segment keys, the document is still reported
+			KeyExplorerUtils.subMetadataGetAsync(pr, (Metadata) md.clone(), uri, cb);
+		}
+	}
+
+	/**
+	 * State of one comparison. Every started sub fetch is counted, the
+	 * result is handed out when the last one is compared.
+	 */
+	private static class Diff {
+
+		private final PluginRespirator pr;
+		private final FreenetURI oldUri;
+		private final FreenetURI newUri;
+		private final FetchQueue queue;
+		private final FetchHandle<Result> handle;
+		private final List<Change> changes = new ArrayList<Change>();
+		private final List<String> errors = new ArrayList<String>();
+		private int skipped;
+		private int pending;
+
+		Diff(PluginRespirator pr2, FreenetURI oldUri2, FreenetURI newUri2, int parallelism, FetchHandle<Result> handle2) {
+			pr = pr2;
+			oldUri = oldUri2;
+			newUri = newUri2;
+			queue = new FetchQueue(parallelism);
+			handle = handle2;
+		}
+
+		void start(Site oldSite, Site newSite) {
+			started();
+			try {
+				compareDocuments("", oldSite.manifest, newSite.manifest, oldSite.container, newSite.container);
+			} catch (Throwable t) {
+				Logger.error(this, "Site diff failed: " + t, t);
+				queue.cancel();
+				handle.onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, t));
+			} finally {
+				finished();
+			}
+		}
+
+		private void compareManifests(String dir, Metadata oldMd, Metadata newMd, byte[] oldContainer, byte[] newContainer) {
+			TreeSet<String> names = new TreeSet<String>(oldMd.getDocuments().keySet());
+			names.addAll(newMd.getDocuments().keySet());
+			if (oldMd.getDefaultDocument() != null || newMd.getDefaultDocument() != null) {
+				names.add("");
+			}
+			for (String name : names) {
+				Metadata oldDoc = getDocument(oldMd, name);
+				Metadata newDoc = getDocument(newMd, name);
+				String path = dir + name;
+				if (oldDoc == null) {
+					add(new Change(ChangeType.ADDED, path, null, newDoc));
+				} else if (newDoc == null) {
+					add(new Change(ChangeType.REMOVED, path, oldDoc, null));
+				} else {
+					compareDocuments(path, oldDoc, newDoc, oldContainer, newContainer);
+				}
+			}
+		}
+
+		private void compareDocuments(String path, Metadata oldMd, Metadata newMd, byte[] oldContainer, byte[] newContainer) {
+			byte[] oldId = identity(oldMd);
+			boolean same = oldId != null && Arrays.equals(oldId, identity(newMd));
+			if (same && (!inContainer(oldMd) || Arrays.equals(oldContainer, newContainer))) {
+				if (oldMd.isSimpleManifest() || KeyExplorerUtils.hasSubMetadata(oldMd)) {
+					synchronized (this) {
+						skipped++;
+					}
+				}
+				return;
+			}
+			if (oldMd.isSimpleManifest() && newMd.isSimpleManifest()) {
+				compareManifests((path.length() == 0) ? "" : path + '/', oldMd, newMd, oldContainer, newContainer);
+				return;
+			}
+			if (KeyExplorerUtils.hasSubMetadata(oldMd) && KeyExplorerUtils.hasSubMetadata(newMd)) {
+				compareSubMetadata(path, oldMd, newMd,
+						oldMd.isArchiveManifest() ? oldId : oldContainer,
+						newMd.isArchiveManifest() ? identity(newMd) : newContainer);
+				return;
+			}
+			add(new Change(same ? ChangeType.UNVERIFIED : ChangeType.CHANGED, path, oldMd, newMd));
+		}
+
+		private void compareSubMetadata(final String path, final Metadata oldMd, final Metadata newMd, final byte[] oldContainer, final byte[] newContainer) {
+			if (logMINOR) Logger.minor(this, "Fetching sub metadata of " + path);
+			started();
+			final FetchHandle<Metadata> oldSub = queue.submit(new SubMetadataJob(pr, oldMd, oldUri));
+			final FetchHandle<Metadata> newSub = queue.submit(new SubMetadataJob(pr, newMd, newUri));
+			final FetchCallback<Metadata> failed = new FetchCallback<Metadata>() {
+				@Override
+				public void onSuccess(Metadata result) {
+				}
+
+				@Override
+				public void onFailure(FetchException e) {
+					synchronized (Diff.this) {
+						errors.add(path + ": " + e.getLocalizedMessage());
+					}
+					add(new Change(ChangeType.CHANGED, path, oldMd, newMd));
+					finished();
+				}
+			};
+			oldSub.addCallback(new FetchCallback<Metadata>() {
+				@Override
+				public void onSuccess(final Metadata oldResult) {
+					newSub.addCallback(new FetchCallback<Metadata>() {
+						@Override
+						public void onSuccess(Metadata newResult) {
+							try {
+								compareDocuments(path, oldResult, newResult, oldContainer, newContainer);
+							} finally {
+								finished();
+							}
+						}
+
+						@Override
+						public void onFailure(FetchException e) {
+							failed.onFailure(e);
+						}
+					});
+				}
+
+				@Override
+				public void onFailure(FetchException e) {
+					failed.onFailure(e);
+				}
+			});
+		}
+
+		private synchronized void add(Change change) {
+			changes.add(change);
+		}
+
+		private synchronized void started() {
+			pending++;
+		}
+
+		private void finished() {
+			synchronized (this) {
+				if (--pending > 0) {
+					return;
+				}
+				Collections.sort(changes, new Comparator<Change>() {
+					@Override
+					public int compare(Change a, Change b) {
+						return a.path.compareTo(b.path);
+					}
+				});
+			}
+			handle.onSuccess(new Result(changes, errors, skipped));
+		}
+	}
+}
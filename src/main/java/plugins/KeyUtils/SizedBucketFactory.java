@@ -0,0 +1,75 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.io.IOException;
+
+import freenet.client.Metadata;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+/**
+ * Picks the bucket type by the (expected) size of the data.
+ *
+ * Top blocks and most metadata are small, they stay on the heap. Everything
+ * else goes to the node's temp bucket factory, which keeps medium sized
+ * buckets in RAM and moves larger ones to (encrypted) temp files.
+ */
+public class SizedBucketFactory implements BucketFactory {
+
+	/** Data up to this size is kept in a plain heap array. */
+	public static final long MAX_HEAP_SIZE = 32 * 1024;
+
+	private final BucketFactory tempFactory;
+
+	public SizedBucketFactory(BucketFactory tempBucketFactory) {
+		tempFactory = tempBucketFactory;
+	}
+
+	/**
+	 * @param size the expected size, -1 if unknown
+	 */
+	@Override
+	public RandomAccessBucket makeBucket(long size) throws IOException {
+		if (size >= 0 && size <= MAX_HEAP_SIZE) {
+			return new ArrayBucket();
+		}
+		return tempFactory.makeBucket(size);
+	}
+
+	/**
+	 * @return a private copy of data
+	 */
+	public Bucket copyOf(Bucket data) throws IOException {
+		long size = data.size();
+		if (size <= MAX_HEAP_SIZE) {
+			return new ArrayBucket(BucketTools.toByteArray(data));
+		}
+		Bucket copy = tempFactory.makeBucket(size);
+		try {
+			BucketTools.copy(data, copy);
+		} catch (IOException e) {
+			copy.free();
+			throw e;
+		}
+		return copy;
+	}
+
+	/**
+	 * @return the size of the (decompressed) data the metadata points to, -1 if unknown
+	 */
+	public static long expectedSize(Metadata md) {
+		long size;
+		if (md.isCompressed())
+			size = md.uncompressedDataLength();
+		else if (md.isSplitfile())
+			size = md.dataLength();
+		else
+			return -1;
+		return (size > 0) ? size : -1;
+	}
+}
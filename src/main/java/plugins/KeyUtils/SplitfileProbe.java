@@ -0,0 +1,291 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.FetchException;
+import freenet.node.Node;
+import freenet.pluginmanager.PluginRespirator;
+import freenet.support.Logger;
+
+/**
+ * Checks which blocks of a splitfile can be fetched right now.
+ *
+ * Every data and check block of every segment is probed once (see
+ * {@link KeyExplorerUtils#probeBlockAsync}). The probes run through a
+ * {@link FetchQueue} and are started no faster than the given rate, so a
+ * big splitfile does not flood the node with requests.
+ *
+ * {@link #checkLocal(Node, SegmentKeyTable)} only looks into the
+ * datastore and caches of the local node, without any request.
+ */
+public class SplitfileProbe {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SplitfileProbe.class);
+	}
+
+	public interface Listener {
+
+		/**
+		 * Called on the thread running the probe, in segment order.
+		 */
+		void onSegment(int index, SegmentResult result);
+
+		/**
+		 * @return true to stop probing, e.g. the client is gone
+		 */
+		boolean isCancelled();
+	}
+
+	public static class SegmentResult {
+
+		private final int dataBlocks;
+		private final int checkBlocks;
+		private int dataFound;
+		private int checkFound;
+		private int failed;
+
+		SegmentResult(int dataBlocks2, int checkBlocks2) {
+			dataBlocks = dataBlocks2;
+			checkBlocks = checkBlocks2;
+		}
+
+		public int getDataBlocks() {
+			return dataBlocks;
+		}
+
+		public int getCheckBlocks() {
+			return checkBlocks;
+		}
+
+		public int getDataFound() {
+			return dataFound;
+		}
+
+		public int getCheckFound() {
+			return checkFound;
+		}
+
+		/**
+		 * @return the number of blocks that could not be probed (cancelled, internal errors)
+		 */
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return true if enough blocks were found to decode the segment
+		 */
+		public boolean isDecodable() {
+			return dataFound + checkFound >= dataBlocks;
+		}
+
+		/**
+		 * @return the number of blocks still needed to decode the segment, 0 if decodable
+		 */
+		public int getMissing() {
+			return Math.max(0, dataBlocks - dataFound - checkFound);
+		}
+	}
+
+	/**
+	 * Counts the probes of one segment, completes when all are in.
+	 */
+	private static class SegmentProbe {
+
+		private final SegmentResult result;
+		private final FetchHandle<SegmentResult> done = new FetchHandle<SegmentResult>();
+		private int pending;
+
+		SegmentProbe(SegmentKeyTable keys, int segment) {
+			result = new SegmentResult(keys.getDataBlocks(segment), keys.getCheckBlocks(segment));
+			pending = keys.getTotalBlocks(segment);
+			if (pending == 0) {
+				done.onSuccess(result);
+			}
+		}
+
+		FetchCallback<Boolean> callback(final boolean data) {
+			return new FetchCallback<Boolean>() {
+				@Override
+				public void onSuccess(Boolean found) {
+					synchronized (SegmentProbe.this) {
+						if (found) {
+							if (data) {
+								result.dataFound++;
+							} else {
+								result.checkFound++;
+							}
+						}
+					}
+					finished();
+				}
+
+				@Override
+				public void onFailure(FetchException e) {
+					synchronized (SegmentProbe.this) {
+						result.failed++;
+					}
+					finished();
+				}
+			};
+		}
+
+		private void finished() {
+			synchronized (this) {
+				if (--pending > 0) {
+					return;
+				}
+			}
+			done.onSuccess(result);
+		}
+	}
+
+	/**
+	 * Fetches a single block.
+	 */
+	private static class ProbeJob implements FetchQueue.Job<Boolean> {
+
+		private final PluginRespirator pr;
+		private final SegmentKeyTable keys;
+		private final int segment;
+		private final int block;
+
+		ProbeJob(PluginRespirator pr2, SegmentKeyTable keys2, int segment2, int block2) {
+			pr = pr2;
+			keys = keys2;
+			segment = segment2;
+			block = block2;
+		}
+
+		@Override
+		public void start(FetchCallback<Boolean> cb) {
+			KeyExplorerUtils.probeBlockAsync(pr, keys.getURI(segment, block), cb);
+		}
+	}
+
+	private final PluginRespirator pr;
+	private final SegmentKeyTable keys;
+	private final int parallelism;
+	private final int blocksPerSecond;
+
+	/**
+	 * @param parallelism the number of probes running at the same time
+	 * @param blocksPerSecond the max number of probes started per second
+	 */
+	public SplitfileProbe(PluginRespirator pr2, SegmentKeyTable keys2, int parallelism2, int blocksPerSecond2) {
+		pr = pr2;
+		keys = keys2;
+		parallelism = parallelism2;
+		blocksPerSecond = Math.max(1, blocksPerSecond2);
+	}
+
+	/**
+	 * Probe all segments, blocks until done or cancelled. Results are
+	 * passed to the listener as soon as a segment and all before it are
+	 * complete.
+	 */
+	public void run(Listener listener) {
+		FetchQueue queue = new FetchQueue(parallelism);
+		List<SegmentProbe> probes = new ArrayList<SegmentProbe>(keys.getSegmentCount());
+		long interval = 1000000000L / blocksPerSecond;
+		long nextStart = System.nanoTime();
+		int reported = 0;
+		try {
+			for (int segment = 0; segment < keys.getSegmentCount(); segment++) {
+				SegmentProbe probe = new SegmentProbe(keys, segment);
+				probes.add(probe);
+				int dataBlocks = keys.getDataBlocks(segment);
+				int total = keys.getTotalBlocks(segment);
+				for (int i = 0; i < total; i++) {
+					reported = report(probes, reported, listener, false);
+					if (listener.isCancelled()) {
+						return;
+					}
+					nextStart = pace(nextStart, interval);
+					queue.submit(new ProbeJob(pr, keys, segment, i), probe.callback(i < dataBlocks));
+				}
+			}
+			if (logMINOR) Logger.minor(this, "All probes started, " + (probes.size() - reported) + " segments to go");
+			report(probes, reported, listener, true);
+		} finally {
+			queue.cancel();
+		}
+	}
+
+	/**
+	 * Check all blocks against the local datastore and client cache. No
+	 * requests are started, this is fast even for huge splitfiles.
+	 * @return the results, one per segment. Nothing fails here.
+	 */
+	public static SegmentResult[] checkLocal(Node node, SegmentKeyTable keys) {
+		SegmentResult[] results = new SegmentResult[keys.getSegmentCount()];
+		int blocks = 0;
+		long start = System.currentTimeMillis();
+		for (int s = 0; s < results.length; s++) {
+			SegmentResult result = new SegmentResult(keys.getDataBlocks(s), keys.getCheckBlocks(s));
+			int total = keys.getTotalBlocks(s);
+			for (int i = 0; i < total; i++) {
+				// node keys only, no need to build client keys and URIs
+				if (node.hasKey(keys.getNodeKey(s, i), true, false)) {
+					if (i < result.dataBlocks) {
+						result.dataFound++;
+					} else {
+						result.checkFound++;
+					}
+				}
+			}
+			blocks += total;
+			results[s] = result;
+		}
+		if (logMINOR) Logger.minor(SplitfileProbe.class, "Checked " + blocks + " blocks locally in " + (System.currentTimeMillis() - start) + "ms");
+		return results;
+	}
+
+	/**
+	 * Pass completed segments on in order.
+	 * @param wait wait for the outstanding segments
+	 * @return the number of segments reported so far
+	 */
+	private int report(List<SegmentProbe> probes, int reported, Listener listener, boolean wait) {
+		while (reported < probes.size() && !listener.isCancelled()) {
+			SegmentProbe probe = probes.get(reported);
+			if (!wait && !probe.done.isFinished()) {
+				break;
+			}
+			try {
+				listener.onSegment(reported, probe.done.waitForCompletion());
+			} catch (FetchException e) {
+				// impossible, a segment probe never fails
+				Logger.error(this, "Segment probe failed: " + e, e);
+			}
+			reported++;
+		}
+		return reported;
+	}
+
+	/**
+	 * Wait until the next probe may be started.
+	 * @return the earliest start of the probe after that
+	 */
+	private static long pace(long nextStart, long interval) {
+		long now = System.nanoTime();
+		long delay = nextStart - now;
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return nextStart + interval;
+		}
+		// no bursts after a pause, the rate counts from now
+		return now + interval;
+	}
+}
@@ -0,0 +1,168 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+
+/**
+ * Index of a TAR container.
+ *
+ * Only the 512 byte headers are read while indexing, the entry data is
+ * skipped. Understands plain, ustar (name prefix) and GNU long name
+ * headers, the latter are written by the node's container inserter.
+ */
+public class TarArchiveIndex extends ArchiveIndex {
+
+	private static final int BLOCK_SIZE = 512;
+	/** longer GNU long names are rejected, real ones are far shorter */
+	private static final int MAX_LONG_NAME = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private TarArchiveIndex(Bucket data) {
+		super(data);
+	}
+
+	/**
+	 * Index a TAR container. On success the index owns the bucket.
+	 */
+	public static TarArchiveIndex build(Bucket data) throws IOException {
+		TarArchiveIndex index = new TarArchiveIndex(data);
+		InputStream is = new BufferedInputStream(data.getInputStreamUnbuffered(), 32768);
+		try {
+			index.scan(is);
+		} finally {
+			Closer.close(is);
+		}
+		return index;
+	}
+
+	private void scan(InputStream is) throws IOException {
+		byte[] header = new byte[BLOCK_SIZE];
+		long position = 0;
+		String longName = null;
+		while (true) {
+			if (!readBlock(is, header)) {
+				// a truncated archive, keep what we have
+				break;
+			}
+			position += BLOCK_SIZE;
+			if (isZeroBlock(header)) {
+				// end of archive
+				break;
+			}
+			long size = parseSize(header, 124, 12);
+			if (size < 0 || size > Long.MAX_VALUE - BLOCK_SIZE) {
+				throw new IOException("Invalid TAR header");
+			}
+			long padded = (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+			byte type = header[156];
+
+			if (type == 'L') {
+				if (size > MAX_LONG_NAME) {
+					throw new IOException("Invalid TAR header");
+				}
+				// GNU long name, the name is the entry data
+				byte[] buf = new byte[(int) padded];
+				if (!readBlock(is, buf)) {
+					break;
+				}
+				position += padded;
+				longName = parseString(buf, 0, (int) size);
+				continue;
+			}
+
+			String name;
+			if (longName != null) {
+				name = longName;
+				longName = null;
+			} else {
+				name = parseName(header);
+			}
+
+			if (type == '0' || type == 0 || type == '7') {
+				addEntry(name, new Entry(position, size));
+			}
+			skipFully(is, padded);
+			position += padded;
+		}
+	}
+
+	@Override
+	protected InputStream openEntry(Entry entry) throws IOException {
+		return new RangeInputStream(openAt(entry.offset), entry.length);
+	}
+
+	private static boolean readBlock(InputStream is, byte[] buf) throws IOException {
+		int done = 0;
+		while (done < buf.length) {
+			int r = is.read(buf, done, buf.length - done);
+			if (r < 0) {
+				if (done == 0) return false;
+				throw new EOFException("Truncated TAR block");
+			}
+			done += r;
+		}
+		return true;
+	}
+
+	private static boolean isZeroBlock(byte[] header) {
+		for (byte b : header) {
+			if (b != 0) return false;
+		}
+		return true;
+	}
+
+	private static String parseName(byte[] header) {
+		String name = parseString(header, 0, 100);
+		// ustar splits long names into prefix and name
+		if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r') {
+			String prefix = parseString(header, 345, 155);
+			if (prefix.length() > 0) {
+				name = prefix + '/' + name;
+			}
+		}
+		return name;
+	}
+
+	private static String parseString(byte[] buf, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && buf[end] != 0) {
+			end++;
+		}
+		return new String(buf, offset, end - offset, UTF8);
+	}
+
+	private static long parseSize(byte[] header, int offset, int length) throws IOException {
+		if ((header[offset] & 0x80) != 0) {
+			// GNU base-256 encoding for big entries
+			long result = header[offset] & 0x7f;
+			for (int i = 1; i < length; i++) {
+				result = (result << 8) | (header[offset + i] & 0xff);
+			}
+			return result;
+		}
+		long result = 0;
+		int end = offset + length;
+		int i = offset;
+		while (i < end && (header[i] == ' ' || header[i] == '0')) {
+			i++;
+		}
+		for (; i < end; i++) {
+			byte b = header[i];
+			if (b == 0 || b == ' ') break;
+			if (b < '0' || b > '7') {
+				throw new IOException("Invalid TAR header: bad octal number");
+			}
+			result = (result << 3) + (b - '0');
+		}
+		return result;
+	}
+}
@@ -0,0 +1,266 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+
+/**
+ * Index of a ZIP container, read from the central directory at the end
+ * of the archive. Nothing is decompressed while indexing, an entry is
+ * only inflated when it is opened.
+ */
+public class ZipArchiveIndex extends ArchiveIndex {
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int EOCD_SIZE = 22;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int MAX_COMMENT_SIZE = 0xffff;
+
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static class ZipEntryInfo extends Entry {
+		private final int method;
+		private final long uncompressedSize;
+
+		/** offset points to the local header, length is the compressed size */
+		ZipEntryInfo(long localHeaderOffset, long compressedSize, long uncompressedSize2, int method2) {
+			super(localHeaderOffset, compressedSize);
+			uncompressedSize = uncompressedSize2;
+			method = method2;
+		}
+
+		@Override
+		long size() {
+			return uncompressedSize;
+		}
+	}
+
+	private ZipArchiveIndex(Bucket data) {
+		super(data);
+	}
+
+	/**
+	 * Index a ZIP container. On success the index owns the bucket.
+	 */
+	public static ZipArchiveIndex build(Bucket data) throws IOException {
+		ZipArchiveIndex index = new ZipArchiveIndex(data);
+		index.readCentralDirectory();
+		return index;
+	}
+
+	private void readCentralDirectory() throws IOException {
+		long size = data.size();
+		if (size < EOCD_SIZE) {
+			throw new IOException("Not a ZIP archive: too short");
+		}
+		int tailLength = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT_SIZE);
+		byte[] tail = readAt(size - tailLength, tailLength);
+
+		int eocd = -1;
+		for (int i = tailLength - EOCD_SIZE; i >= 0; i--) {
+			if (getInt(tail, i) == EOCD_SIGNATURE) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd < 0) {
+			throw new IOException("Not a ZIP archive: no end of central directory");
+		}
+
+		int count = getShort(tail, eocd + 10);
+		long cdSize = getUnsignedInt(tail, eocd + 12);
+		long cdOffset = getUnsignedInt(tail, eocd + 16);
+		if (count == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+			throw new IOException("ZIP64 archives are not supported");
+		}
+		if (cdOffset + cdSize > size || cdSize > Integer.MAX_VALUE) {
+			throw new IOException("Invalid ZIP archive: central directory out of range");
+		}
+
+		byte[] cd = readAt(cdOffset, (int) cdSize);
+		int pos = 0;
+		for (int i = 0; i < count; i++) {
+			if (pos + CENTRAL_HEADER_SIZE > cd.length || getInt(cd, pos) != CENTRAL_SIGNATURE) {
+				throw new IOException("Invalid ZIP archive: bad central directory entry " + i);
+			}
+			int method = getShort(cd, pos + 10);
+			long compressedSize = getUnsignedInt(cd, pos + 20);
+			long uncompressedSize = getUnsignedInt(cd, pos + 24);
+			int nameLength = getShort(cd, pos + 28);
+			int extraLength = getShort(cd, pos + 30);
+			int commentLength = getShort(cd, pos + 32);
+			long localOffset = getUnsignedInt(cd, pos + 42);
+			if (pos + CENTRAL_HEADER_SIZE + nameLength > cd.length) {
+				throw new IOException("Invalid ZIP archive: truncated central directory");
+			}
+			String name = new String(cd, pos + CENTRAL_HEADER_SIZE, nameLength, UTF8);
+			if (!name.endsWith("/")) {
+				addEntry(name, new ZipEntryInfo(localOffset, compressedSize, uncompressedSize, method));
+			}
+			pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+	}
+
+	@Override
+	protected InputStream openEntry(Entry entry) throws IOException {
+		ZipEntryInfo zipEntry = (ZipEntryInfo) entry;
+		if (zipEntry.method != METHOD_STORED && zipEntry.method != METHOD_DEFLATED) {
+			throw new IOException("Unsupported ZIP compression method: " + zipEntry.method);
+		}
+		InputStream is = openAt(zipEntry.offset);
+		try {
+			// the local header may have a different extra field than the central one
+			byte[] header = new byte[LOCAL_HEADER_SIZE];
+			readFully(is, header);
+			if (getInt(header, 0) != LOCAL_SIGNATURE) {
+				throw new IOException("Invalid ZIP archive: bad local header");
+			}
+			skipFully(is, getShort(header, 26) + getShort(header, 28));
+		} catch (IOException e) {
+			Closer.close(is);
+			throw e;
+		}
+		InputStream data = new RangeInputStream(is, zipEntry.length);
+		if (zipEntry.method == METHOD_STORED) {
+			return new SizeLimitInputStream(data, zipEntry.uncompressedSize);
+		}
+		return new SizeLimitInputStream(new RawInflaterInputStream(data), zipEntry.uncompressedSize);
+	}
+
+	/**
+	 * Fails once the entry gives more data than its declared size, a small
+	 * deflated entry can inflate to almost anything.
+	 */
+	private static class SizeLimitInputStream extends FilterInputStream {
+
+		private final long limit;
+		private long count;
+
+		SizeLimitInputStream(InputStream in, long limit2) {
+			super(in);
+			limit = limit2;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = in.read(b, off, len);
+			if (r > 0) {
+				count(r);
+			}
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long s = in.skip(n);
+			if (s > 0) {
+				count(s);
+			}
+			return s;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void count(long n) throws IOException {
+			count += n;
+			if (count > limit) {
+				throw new IOException("Invalid ZIP archive: entry larger than its declared size " + limit);
+			}
+		}
+	}
+
+	/**
+	 * Inflates a raw deflate stream. The inflater needs a trailing dummy
+	 * byte in some cases, same as java.util.zip.ZipFile does it.
+	 */
+	private static class RawInflaterInputStream extends InflaterInputStream {
+
+		private boolean eof;
+
+		RawInflaterInputStream(InputStream in) {
+			super(in, new Inflater(true), 32768);
+		}
+
+		@Override
+		protected void fill() throws IOException {
+			if (eof) {
+				throw new EOFException("Unexpected end of ZIP entry");
+			}
+			len = in.read(buf, 0, buf.length);
+			if (len == -1) {
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			inf.end();
+		}
+	}
+
+	private byte[] readAt(long offset, int length) throws IOException {
+		InputStream is = openAt(offset);
+		try {
+			byte[] buf = new byte[length];
+			readFully(is, buf);
+			return buf;
+		} finally {
+			Closer.close(is);
+		}
+	}
+
+	private static void readFully(InputStream is, byte[] buf) throws IOException {
+		int done = 0;
+		while (done < buf.length) {
+			int r = is.read(buf, done, buf.length - done);
+			if (r < 0) {
+				throw new EOFException();
+			}
+			done += r;
+		}
+	}
+
+	private static int getShort(byte[] buf, int offset) {
+		return (buf[offset] & 0xff) | ((buf[offset + 1] & 0xff) << 8);
+	}
+
+	private static int getInt(byte[] buf, int offset) {
+		return getShort(buf, offset) | (getShort(buf, offset + 2) << 16);
+	}
+
+	private static long getUnsignedInt(byte[] buf, int offset) {
+		return getInt(buf, offset) & 0xffffffffL;
+	}
+}
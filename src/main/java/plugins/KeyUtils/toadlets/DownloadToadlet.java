@@ -3,28 +3,33 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.KeyUtils.toadlets;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.util.LinkedList;
 import java.util.List;
 
-import plugins.KeyUtils.GetResult;
+import plugins.KeyUtils.ArchiveCache.CachedArchive;
+import plugins.KeyUtils.ArchiveIndex;
+import plugins.KeyUtils.ContentCache;
 import plugins.KeyUtils.KeyExplorerUtils;
 import plugins.KeyUtils.KeyUtilsPlugin;
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.DefaultMIMETypes;
 import freenet.client.FetchException;
-import freenet.client.Metadata;
-import freenet.client.MetadataParseException;
 import freenet.clients.http.PageNode;
 import freenet.clients.http.ToadletContext;
 import freenet.clients.http.ToadletContextClosedException;
 import freenet.keys.FreenetURI;
 import freenet.l10n.PluginL10n;
 import freenet.support.HTMLNode;
+import freenet.support.Logger;
 import freenet.support.MultiValueTable;
 import freenet.support.api.HTTPRequest;
-import freenet.support.io.BucketTools;
+import freenet.support.api.RandomAccessBuffer;
+import freenet.support.io.Closer;
 import freenet.support.plugins.helpers1.InvisibleWebInterfaceToadlet;
 import freenet.support.plugins.helpers1.PluginContext;
 import freenet.support.plugins.helpers1.URISanitizer;
@@ -35,6 +40,9 @@ import freenet.support.plugins.helpers1.URISanitizer;
  */
 public class DownloadToadlet extends InvisibleWebInterfaceToadlet {
 
+	/** bytes read from the file and written to the client at once */
+	private static final int CHUNK_SIZE = 32 * 1024;
+
 	private final PluginL10n _intl;
 
 	public DownloadToadlet(PluginContext context, KeyExplorerToadlet ket, PluginL10n intl) {
@@ -67,12 +75,20 @@ public class DownloadToadlet extends InvisibleWebInterfaceToadlet {
 		}
 
 		if ("splitdownload".equals(action)) {
-			byte[] data = doDownload(errors, key);
-			if (errors.size()==0) {
-				MultiValueTable<String, String> head = new MultiValueTable<String, String>();
-				head.put("Content-Disposition", "attachment; filename=\"split-download\"");
-				ctx.sendReplyHeaders(200, "Found", head, DefaultMIMETypes.DEFAULT_MIME_TYPE, data.length);
-				ctx.writeData(data);
+			FreenetURI furi = null;
+			ContentCache.CachedContent content = null;
+			try {
+				furi = URISanitizer.sanitizeURI(errors, key, false, URISanitizer.Options.NOMETASTRINGS, URISanitizer.Options.SSKFORUSK);
+				content = doDownload(errors, furi);
+			} catch (MalformedURLException e) {
+				errors.add(e.getMessage());
+			}
+			if (content != null) {
+				try {
+					sendContent(ctx, content, furi, "split-download");
+				} finally {
+					content.release();
+				}
 				return;
 			} else {
 				makeErrorPage(ctx, errors);
@@ -80,6 +96,11 @@ public class DownloadToadlet extends InvisibleWebInterfaceToadlet {
 			}
 		}
 
+		if ("extract".equals(action)) {
+			doExtract(ctx, errors, key, request.getParam(Globals.PARAM_MFTYPE).trim(), request.getParam(Globals.PARAM_FILENAME));
+			return;
+		}
+
 		errors.add("Did not understud action='"+action+"'.");
 		makeErrorPage(ctx, errors);
 	}
@@ -94,37 +115,238 @@ public class DownloadToadlet extends InvisibleWebInterfaceToadlet {
 		writeHTMLReply(ctx, 501, "OK", outer.generate());
 	}
 
-	private byte[] doDownload(List<String> errors, String key) {
+	/**
+	 * The decoded file is kept in the download cache, so an interrupted
+	 * download can be resumed without fetching it again.
+	 * @return the file, the caller has to release it. null on errors.
+	 */
+	private ContentCache.CachedContent doDownload(List<String> errors, FreenetURI furi) {
+		try {
+			return KeyExplorerUtils.acquireSplitDownload(pluginContext.pluginRespirator, furi);
+		} catch (FetchException e) {
+			errors.add(e.getMessage());
+			Logger.normal(this, "Split download failed: " + furi, e);
+		}
+		return null;
+	}
 
-		if (errors.size() > 0) {
-			return null;
+	/**
+	 * Send a single entry of a ZIP or TAR container. The container is
+	 * fetched once (or taken from the container cache) and only the
+	 * requested entry is unpacked, straight to the client.
+	 */
+	private void doExtract(ToadletContext ctx, List<String> errors, String key, String mftype, String name) throws ToadletContextClosedException, IOException {
+		ARCHIVE_TYPE type = null;
+		if (Globals.MFTYPE_ZIP.equals(mftype)) {
+			type = ARCHIVE_TYPE.ZIP;
+		} else if (Globals.MFTYPE_TAR.equals(mftype)) {
+			type = ARCHIVE_TYPE.TAR;
+		} else {
+			errors.add("Parameter '" + Globals.PARAM_MFTYPE + "' must be " + Globals.MFTYPE_ZIP + " or " + Globals.MFTYPE_TAR + ".");
 		}
-		if (key == null || (key.trim().length() == 0)) {
-			errors.add("Are you jokingly? Empty URI");
-			return null;
+		if (name.length() == 0) {
+			errors.add("Parameter '" + Globals.PARAM_FILENAME + "' missing.");
+		}
+		if (errors.size() > 0) {
+			makeErrorPage(ctx, errors);
+			return;
 		}
+
+		CachedArchive archive = null;
 		try {
 			FreenetURI furi = URISanitizer.sanitizeURI(errors, key, false, URISanitizer.Options.NOMETASTRINGS, URISanitizer.Options.SSKFORUSK);
-			GetResult getresult = KeyExplorerUtils.simpleGet(pluginContext.pluginRespirator, furi);
-			if (getresult.isMetaData()) {
-				return KeyExplorerUtils.unrollMetadata(pluginContext.pluginRespirator, errors, Metadata.construct(getresult.getData()));
-			} else {
-				return BucketTools.toByteArray(getresult.getData());
-			}
+			archive = KeyExplorerUtils.acquireArchive(pluginContext.pluginRespirator, furi, type);
 		} catch (MalformedURLException e) {
 			errors.add(e.getMessage());
-			e.printStackTrace();
-		} catch (MetadataParseException e) {
-			errors.add(e.getMessage());
-			e.printStackTrace();
-		} catch (IOException e) {
-			errors.add(e.getMessage());
-			e.printStackTrace();
 		} catch (FetchException e) {
 			errors.add(e.getMessage());
-			e.printStackTrace();
+			Logger.normal(this, "Container fetch failed: " + key, e);
 		}
-		return null;
+		if (archive == null) {
+			makeErrorPage(ctx, errors);
+			return;
+		}
+		InputStream is = null;
+		try {
+			ArchiveIndex index = archive.getIndex();
+			if (!index.contains(name)) {
+				errors.add("No such entry in container: " + name);
+				makeErrorPage(ctx, errors);
+				return;
+			}
+			is = index.getInputStream(name);
+			long size = index.getSize(name);
+			MultiValueTable<String, String> head = new MultiValueTable<String, String>();
+			head.put("Content-Disposition", "attachment; filename=\"" + fileName(name) + "\"");
+			if (size < 0) {
+				// the end of the data marks the end of the entry
+				ctx.forceDisconnect();
+			}
+			ctx.sendReplyHeaders(200, "OK", head, DefaultMIMETypes.DEFAULT_MIME_TYPE, size);
+			try {
+				writeEntry(ctx, is, size);
+			} catch (IOException e) {
+				// the headers are out, the client can only tell from a closed connection
+				Logger.normal(this, "Failed to extract " + name + " from " + key + ": " + e, e);
+				ctx.forceDisconnect();
+			}
+		} finally {
+			Closer.close(is);
+			archive.release();
+		}
+	}
+
+	/**
+	 * Copy an entry to the client. The declared size of an entry in a
+	 * suspicious container may be wrong, exactly the size sent as
+	 * Content-Length is written, or the copy fails.
+	 * @param size the declared size, -1 to copy until the end of the data
+	 */
+	private static void writeEntry(ToadletContext ctx, InputStream is, long size) throws ToadletContextClosedException, IOException {
+		byte[] buf = new byte[CHUNK_SIZE];
+		long remaining = size;
+		while (size < 0 || remaining > 0) {
+			int n = is.read(buf, 0, (size < 0) ? buf.length : (int) Math.min(buf.length, remaining));
+			if (n < 0) {
+				if (size < 0) {
+					return;
+				}
+				throw new EOFException("Entry shorter than its declared size " + size);
+			}
+			ctx.writeData(buf, 0, n);
+			remaining -= n;
+		}
+		if (is.read() >= 0) {
+			throw new IOException("Entry longer than its declared size " + size);
+		}
+	}
+
+	/**
+	 * @return the last path component of an entry name, usable in a header
+	 */
+	private static String fileName(String name) {
+		String fileName = name.substring(name.lastIndexOf('/') + 1);
+		fileName = fileName.replace('"', '_').replace('\\', '_').replace('\r', '_').replace('\n', '_');
+		return (fileName.length() == 0) ? "entry" : fileName;
+	}
+
+	/**
+	 * Send the file, or the part of it asked for with a Range header.
+	 * Only a single byte range is supported, a request for several ranges
+	 * gets the whole file. Only files of immutable keys get an ETag, the
+	 * content of other keys may change between requests, so If-Range never
+	 * matches for them.
+	 */
+	private void sendContent(ToadletContext ctx, ContentCache.CachedContent content, FreenetURI uri, String filename) throws ToadletContextClosedException, IOException {
+		long size = content.size();
+		String etag = KeyExplorerUtils.isImmutable(uri) ? "\"" + uri.toString(false, false) + "\"" : null;
+		MultiValueTable<String, String> head = new MultiValueTable<String, String>();
+		head.put("Content-Disposition", "attachment; filename=\"" + filename + "\"");
+		head.put("Accept-Ranges", "bytes");
+		if (etag != null) {
+			head.put("ETag", etag);
+		}
+
+		long[] range = null;
+		String rangeHeader = ctx.getHeaders().get("range");
+		if (rangeHeader != null) {
+			String ifRange = ctx.getHeaders().get("if-range");
+			if (ifRange == null || (etag != null && etag.equals(ifRange.trim()))) {
+				range = parseRange(rangeHeader, size);
+			}
+		}
+		if (range == null) {
+			ctx.sendReplyHeaders(200, "OK", head, DefaultMIMETypes.DEFAULT_MIME_TYPE, size);
+			writeRange(ctx, content.getData(), 0, size);
+			return;
+		}
+		if (range.length == 0) {
+			head.put("Content-Range", "bytes */" + size);
+			ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", head, "text/plain", 0);
+			return;
+		}
+		long length = range[1] - range[0] + 1;
+		head.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+		ctx.sendReplyHeaders(206, "Partial Content", head, DefaultMIMETypes.DEFAULT_MIME_TYPE, length);
+		writeRange(ctx, content.getData(), range[0], length);
+	}
+
+	/**
+	 * Copy a part of the file to the client in chunks, it is never held
+	 * in memory as a whole. Called after the headers are sent, a failure
+	 * closes the connection, so a resuming client does not take a short
+	 * body for the range it asked for.
+	 */
+	private void writeRange(ToadletContext ctx, RandomAccessBuffer data, long start, long length) throws ToadletContextClosedException {
+		byte[] buf = new byte[(int) Math.max(1, Math.min(CHUNK_SIZE, length))];
+		long pos = start;
+		long end = start + length;
+		try {
+			while (pos < end) {
+				int n = (int) Math.min(buf.length, end - pos);
+				data.pread(pos, buf, 0, n);
+				ctx.writeData(buf, 0, n);
+				pos += n;
+			}
+		} catch (IOException e) {
+			Logger.normal(this, "Failed to send bytes " + start + "-" + (end - 1) + " at " + pos + ": " + e, e);
+			ctx.forceDisconnect();
+		}
+	}
+
+	/**
+	 * Parse a Range header (RFC 7233), single byte ranges only.
+	 * @return first and last byte of the range, null if the header is
+	 *  invalid or asks for several ranges (send the whole file), an empty
+	 *  array if the range is outside of the file
+	 */
+	private static long[] parseRange(String header, long size) {
+		header = header.trim();
+		if (!header.startsWith("bytes=")) {
+			return null;
+		}
+		String spec = header.substring(6).trim();
+		if (spec.indexOf(',') >= 0) {
+			return null;
+		}
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		String first = spec.substring(0, dash).trim();
+		String last = spec.substring(dash + 1).trim();
+		long start;
+		long end;
+		try {
+			if (first.length() == 0) {
+				// suffix range, the last n bytes
+				if (last.length() == 0) {
+					return null;
+				}
+				long suffix = Long.parseLong(last);
+				if (suffix < 0) {
+					return null;
+				}
+				if (suffix == 0 || size == 0) {
+					return new long[0];
+				}
+				start = Math.max(0, size - suffix);
+				end = size - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = (last.length() == 0) ? size - 1 : Long.parseLong(last);
+				if (start < 0 || end < start) {
+					return null;
+				}
+				if (start >= size) {
+					return new long[0];
+				}
+				end = Math.min(end, size - 1);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return new long[] { start, end };
 	}
 
 	private String i18n(String key) {
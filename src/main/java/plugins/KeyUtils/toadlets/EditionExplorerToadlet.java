@@ -0,0 +1,387 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils.toadlets;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import plugins.KeyUtils.Configuration;
+import plugins.KeyUtils.FetchCallback;
+import plugins.KeyUtils.FetchHandle;
+import plugins.KeyUtils.FetchQueue;
+import plugins.KeyUtils.GetResult;
+import plugins.KeyUtils.KeyExplorerUtils;
+import plugins.KeyUtils.KeyUtilsPlugin;
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.client.Metadata;
+import freenet.client.MetadataParseException;
+import freenet.clients.http.InfoboxNode;
+import freenet.clients.http.PageNode;
+import freenet.clients.http.ToadletContext;
+import freenet.clients.http.ToadletContextClosedException;
+import freenet.keys.FreenetURI;
+import freenet.l10n.PluginL10n;
+import freenet.pluginmanager.PluginRespirator;
+import freenet.support.HTMLNode;
+import freenet.support.Logger;
+import freenet.support.api.HTTPRequest;
+import freenet.support.plugins.helpers1.PluginContext;
+import freenet.support.plugins.helpers1.URISanitizer;
+import freenet.support.plugins.helpers1.WebInterfaceToadlet;
+
+/**
+ * Shows the top level manifests of a range of USK editions side by side.
+ * All editions are fetched at the same time, limited to the configured
+ * number of parallel fetches, the rows are sent as they complete.
+ */
+public class EditionExplorerToadlet extends WebInterfaceToadlet {
+
+	private volatile static boolean logDEBUG;
+
+	static {
+		Logger.registerClass(EditionExplorerToadlet.class);
+	}
+
+	private static final String MARKER_ROWS = "rows";
+
+	/** editions shown if no range is given */
+	private static final int DEFAULT_RANGE = 10;
+	/** max number of editions in one request */
+	private static final int MAX_RANGE = 100;
+
+	private final PluginL10n _intl;
+
+	public EditionExplorerToadlet(PluginContext context, PluginL10n intl) {
+		super(context, KeyUtilsPlugin.PLUGIN_URI, "Editions");
+		_intl = intl;
+	}
+
+	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
+		List<String> errors = new LinkedList<String>();
+		String key = request.getParam(Globals.PARAM_URI);
+		if (key.trim().length() == 0) {
+			makeMainPage(ctx, errors, null, "", "");
+			return;
+		}
+
+		FreenetURI usk = null;
+		try {
+			usk = URISanitizer.sanitizeURI(errors, key, false, URISanitizer.Options.NOMETASTRINGS);
+			if (usk.isSSKForUSK()) {
+				usk = usk.uskForSSK();
+			}
+			if (!usk.isUSK()) {
+				errors.add("Not an USK: " + key);
+			}
+		} catch (MalformedURLException e) {
+			if (logDEBUG) Logger.debug(this, "debug", e);
+			errors.add("Not a valid Frenet URI: " + e.getLocalizedMessage());
+		}
+
+		String fromParam = request.getParam(Globals.PARAM_FROM);
+		String toParam = request.getParam(Globals.PARAM_TO);
+		long from = 0;
+		long to = 0;
+		if (errors.size() == 0) {
+			try {
+				long edition = Math.abs(usk.getSuggestedEdition());
+				to = (toParam.trim().length() == 0) ? edition : Long.parseLong(toParam.trim());
+				from = (fromParam.trim().length() == 0) ? Math.max(0, to - DEFAULT_RANGE + 1) : Long.parseLong(fromParam.trim());
+			} catch (NumberFormatException e) {
+				errors.add("Not a valid edition: " + e.getLocalizedMessage());
+			}
+		}
+		if (errors.size() == 0) {
+			if (from > to) {
+				long tmp = from;
+				from = to;
+				to = tmp;
+			}
+			if (from < 0) {
+				errors.add("Editions can not be negative");
+			} else if (to - from >= MAX_RANGE) {
+				errors.add("Too many editions, at most " + MAX_RANGE + " at once");
+			}
+		}
+		if (errors.size() > 0) {
+			makeMainPage(ctx, errors, key, fromParam, toParam);
+			return;
+		}
+		makeEditionsPage(ctx, usk, from, to);
+	}
+
+	private void makeMainPage(ToadletContext ctx, List<String> errors, String key, String from, String to) throws ToadletContextClosedException, IOException {
+		PageNode page = pluginContext.pageMaker.getPageNode(i18n("EditionExplorer.PageTitle"), ctx);
+		HTMLNode outer = page.outer;
+		HTMLNode contentNode = page.content;
+
+		if (errors.size() > 0) {
+			contentNode.addChild(createErrorBox(errors));
+			errors.clear();
+		}
+		contentNode.addChild(createUriBox(key, from, to));
+		contentNode.addChild(Utils.makeDonateFooter(_intl));
+		writeHTMLReply(ctx, 200, "OK", outer.generate());
+	}
+
+	private HTMLNode createUriBox(String key, String from, String to) {
+		InfoboxNode box = pluginContext.pageMaker.getInfobox("Explore USK editions");
+		HTMLNode browseContent = box.content;
+		browseContent.addChild("#", "Compare the top level manifests of a range of editions. Without a range the last " + DEFAULT_RANGE + " editions up to the one in the key are shown.");
+		HTMLNode browseForm = browseContent.addChild("form", new String[] { "action", "method" }, new String[] { path(), "get" });
+		browseForm.addChild("br");
+		browseForm.addChild("#", "USK: \u00a0 ");
+		browseForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_URI, "70", (key == null) ? "" : key });
+		browseForm.addChild("br");
+		browseForm.addChild("#", "Editions from: \u00a0 ");
+		browseForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_FROM, "10", from });
+		browseForm.addChild("#", "\u00a0 to: \u00a0 ");
+		browseForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_TO, "10", to });
+		browseForm.addChild("#", "\u00a0");
+		browseForm.addChild("input", new String[] { "type", "value" }, new String[] { "submit", "Explore!" });
+		return box.outer;
+	}
+
+	private void makeEditionsPage(ToadletContext ctx, FreenetURI usk, long from, long to) throws ToadletContextClosedException, IOException {
+		PageNode page = pluginContext.pageMaker.getPageNode(i18n("EditionExplorer.PageTitle"), ctx);
+		HTMLNode pageNode = page.outer;
+		HTMLNode contentNode = page.content;
+
+		String key = usk.setSuggestedEdition(to).toString(false, false);
+		contentNode.addChild(createUriBox(key, Long.toString(from), Long.toString(to)));
+		InfoboxNode listInfobox = pluginContext.pageMaker.getInfobox("Editions " + from + "-" + to + " of " + key);
+		HTMLNode contentTable = listInfobox.content.addChild("table");
+		HTMLNode tableRow = contentTable.addChild("thead").addChild("tr");
+		tableRow.addChild("th", "Edition");
+		tableRow.addChild("th", "Top block");
+		tableRow.addChild("th", "Total size");
+		tableRow.addChild("th", "Entries");
+		tableRow.addChild("th", "Layout");
+		tableRow.addChild("th", "Compatibility mode");
+		contentTable.addChild(StreamingPage.marker(MARKER_ROWS));
+		contentNode.addChild(listInfobox.outer);
+		StreamingPage streamingPage = new StreamingPage(ctx, pageNode.generate(), MARKER_ROWS);
+
+		FetchQueue queue = new FetchQueue(Configuration.getDeepParallelism());
+		List<FetchHandle<EditionInfo>> handles = new ArrayList<FetchHandle<EditionInfo>>();
+		for (long edition = from; edition <= to; edition++) {
+			handles.add(queue.submit(new EditionJob(pluginContext.pluginRespirator, usk.setSuggestedEdition(edition), edition)));
+		}
+
+		streamingPage.start();
+		try {
+			long edition = from;
+			for (FetchHandle<EditionInfo> handle : handles) {
+				if (streamingPage.isClosed()) {
+					return;
+				}
+				if (!handle.isFinished()) {
+					// let the client see the rows so far while we wait
+					streamingPage.flush();
+				}
+				try {
+					streamingPage.addRow(makeRow(handle.waitForCompletion()));
+				} catch (FetchException e) {
+					streamingPage.addRow(makeErrorRow(edition, "Get failed (" + e.mode + "): " + e.getMessage()));
+				}
+				edition++;
+			}
+		} finally {
+			queue.cancel();
+		}
+		streamingPage.nextPart();
+	}
+
+	private HTMLNode makeRow(EditionInfo info) {
+		HTMLNode row = new HTMLNode("tr");
+		row.addChild("td").addChild("a", "href", KeyUtilsPlugin.PLUGIN_URI + "/Site/?mftype=" + Globals.MFTYPE_AUTO + "&key=" + info.uri.toString(false, false), Long.toString(info.edition));
+		row.addChild("td", info.topBlockSize + "\u00a0B");
+		row.addChild("td", (info.totalSize < 0) ? "\u00a0" : (info.totalSize + "\u00a0B"));
+		row.addChild("td", (info.entries < 0) ? "\u00a0" : Integer.toString(info.entries));
+		row.addChild("td", info.layout);
+		row.addChild("td", (info.compatibilityMode == null) ? "\u00a0" : info.compatibilityMode);
+		return row;
+	}
+
+	private HTMLNode makeErrorRow(long edition, String msg) {
+		HTMLNode row = new HTMLNode("tr");
+		row.addChild("td", Long.toString(edition));
+		row.addChild("td", "<ERROR>");
+		row.addChild("td", "colspan", "4", msg);
+		return row;
+	}
+
+	/**
+	 * What is known about the top level of one edition.
+	 */
+	private static class EditionInfo {
+		final long edition;
+		final FreenetURI uri;
+		long topBlockSize;
+		long totalSize = -1;
+		int entries = -1;
+		String layout = "";
+		String compatibilityMode;
+
+		EditionInfo(long edition2, FreenetURI uri2) {
+			edition = edition2;
+			uri = uri2;
+		}
+	}
+
+	/**
+	 * Fetches the top level block of an edition and the manifest behind it.
+	 */
+	private static class EditionJob implements FetchQueue.Job<EditionInfo> {
+
+		private final PluginRespirator pr;
+		private final FreenetURI uri;
+		private final long edition;
+
+		EditionJob(PluginRespirator pr2, FreenetURI usk, long edition2) {
+			pr = pr2;
+			uri = usk;
+			edition = edition2;
+		}
+
+		@Override
+		public void start(final FetchCallback<EditionInfo> cb) {
+			final FreenetURI ssk;
+			try {
+				// the same SSK for USK handling as the other explorers
+				ssk = URISanitizer.sanitizeURI(uri.toString(false, false), URISanitizer.Options.NOMETASTRINGS, URISanitizer.Options.SSKFORUSK);
+			} catch (MalformedURLException e) {
+				cb.onFailure(new FetchException(FetchExceptionMode.INVALID_URI, e));
+				return;
+			}
+			KeyExplorerUtils.simpleGetAsync(pr, ssk, new FetchCallback<GetResult>() {
+				@Override
+				public void onSuccess(GetResult result) {
+					EditionInfo info = new EditionInfo(edition, ssk);
+					Metadata md;
+					try {
+						info.topBlockSize = result.getData().size();
+						if (!result.isMetaData()) {
+							info.layout = "Plain data, not a site";
+							cb.onSuccess(info);
+							return;
+						}
+						md = Metadata.construct(result.getData());
+					} catch (MetadataParseException e) {
+						cb.onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, e));
+						return;
+					} catch (IOException e) {
+						cb.onFailure(new FetchException(FetchExceptionMode.BUCKET_ERROR, e));
+						return;
+					} finally {
+						result.getData().free();
+					}
+					describeTop(info, md, cb);
+				}
+
+				@Override
+				public void onFailure(FetchException e) {
+					cb.onFailure(e);
+				}
+			});
+		}
+
+		private void describeTop(final EditionInfo info, Metadata md, final FetchCallback<EditionInfo> cb) {
+			if (md.hasTopData()) {
+				info.totalSize = md.topSize;
+				info.compatibilityMode = md.topCompatibilityMode.name();
+			} else if (md.isSplitfile()) {
+				info.totalSize = md.dataLength();
+			}
+			if (md.isSplitfile() && info.compatibilityMode == null) {
+				String min = md.getMinCompatMode().name();
+				String max = md.getMaxCompatMode().name();
+				info.compatibilityMode = min.equals(max) ? min : (min + "-" + max);
+			}
+
+			FetchHandle<Metadata> manifest;
+			final String top;
+			if (md.isSimpleManifest()) {
+				top = "SMF";
+				manifest = new FetchHandle<Metadata>();
+				manifest.onSuccess(md);
+			} else if (md.isArchiveManifest()) {
+				top = md.getArchiveType().name() + " container" + (md.isSplitfile() ? " (split)" : "");
+				if (md.getArchiveType() == ARCHIVE_TYPE.ZIP) {
+					manifest = KeyExplorerUtils.zipManifestGetAsync(pr, info.uri, null);
+				} else {
+					manifest = KeyExplorerUtils.tarManifestGetAsync(pr, info.uri, ".metadata", null);
+				}
+			} else if (md.isMultiLevelMetadata()) {
+				top = "MLM";
+				manifest = KeyExplorerUtils.splitManifestGetAsync(pr, md, null);
+			} else {
+				info.layout = KeyExplorerUtils.documentType(md) + ", not a site";
+				cb.onSuccess(info);
+				return;
+			}
+			manifest.addCallback(new FetchCallback<Metadata>() {
+				@Override
+				public void onSuccess(Metadata result) {
+					if (!result.isSimpleManifest()) {
+						info.layout = top + " -> " + KeyExplorerUtils.documentType(result) + ", not a site";
+						cb.onSuccess(info);
+						return;
+					}
+					int[] counts = new int[3];
+					count(result, counts);
+					info.entries = counts[0];
+					StringBuilder sb = new StringBuilder(top);
+					if (counts[1] > 0) {
+						sb.append(", ").append(counts[1]).append(" sub containers");
+					}
+					if (counts[2] > 0) {
+						sb.append(", ").append(counts[2]).append(" MLM");
+					}
+					info.layout = sb.toString();
+					cb.onSuccess(info);
+				}
+
+				@Override
+				public void onFailure(FetchException e) {
+					info.layout = top + ", manifest failed: " + e.getMessage();
+					cb.onSuccess(info);
+				}
+			});
+		}
+
+		/**
+		 * Count documents, sub containers and multi level metadata of a
+		 * manifest without fetching anything.
+		 */
+		private static void count(Metadata manifest, int[] counts) {
+			Metadata defaultDoc = manifest.getDefaultDocument();
+			if (defaultDoc != null) {
+				counts[0]++;
+			}
+			for (Metadata md : manifest.getDocuments().values()) {
+				if (md.isSimpleManifest()) {
+					count(md, counts);
+					continue;
+				}
+				counts[0]++;
+				if (md.isArchiveManifest()) {
+					counts[1]++;
+				} else if (md.isMultiLevelMetadata()) {
+					counts[2]++;
+				}
+			}
+		}
+	}
+
+	private String i18n(String key) {
+		return _intl.getBase().getString(key);
+	}
+}
@@ -18,8 +18,20 @@ public class Globals {
 
 	static final String PARAM_FILENAME = "filename";
 	static final String PARAM_URI = "key";
+	static final String PARAM_NEWURI = "newkey";
 	static final String PARAM_MFTYPE = "mftype";
 	static final String PARAM_RECURSIVE = "deep";
 	static final String PARAM_MULTILEVEL = "ml";
 	static final String PARAM_LEVEL = "level";
+	static final String PARAM_LENGTH = "length";
+	static final String PARAM_EXPORT = "export";
+	static final String PARAM_FROM = "from";
+	static final String PARAM_TO = "to";
+	static final String PARAM_LIMIT = "limit";
+	static final String PARAM_LOCAL = "local";
+	static final String PARAM_OFFSET = "offset";
+	static final String PARAM_PATH = "path";
+	static final String PARAM_PROBE = "probe";
+	static final String PARAM_SEGMENT = "segment";
+	static final String PARAM_SORT = "sort";
 }
@@ -0,0 +1,101 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils.toadlets;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+/**
+ * Renders bytes as hex and ASCII columns, html escaped and ready to be
+ * placed in a &lt;pre&gt; block.
+ *
+ * Each line is put together in a reused char buffer from lookup tables
+ * and handed to the output as a whole, nothing is allocated per byte or
+ * per line. Offsets are those in the data, also when only a window is
+ * rendered, or those in a file the data was read from.
+ */
+class HexDumper {
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	/** the ASCII column of each byte value, html escaped */
+	private static final char[][] ASCII = new char[256][];
+	/** the longest entry in ASCII */
+	private static final int MAX_ASCII = 6;
+	private static final int MIN_OFFSET_DIGITS = 7;
+
+	static {
+		for (int b = 0; b < 256; b++) {
+			switch (b) {
+			case '<': ASCII[b] = "&lt;".toCharArray(); break;
+			case '>': ASCII[b] = "&gt;".toCharArray(); break;
+			case '&': ASCII[b] = "&amp;".toCharArray(); break;
+			case '"': ASCII[b] = "&quot;".toCharArray(); break;
+			default: ASCII[b] = new char[] { (b >= 32 && b < 127) ? (char) b : '.' };
+			}
+		}
+	}
+
+	private final int width;
+	private final char[] line;
+	private final CharBuffer lineBuffer;
+
+	/**
+	 * @param width2 bytes per line
+	 */
+	HexDumper(int width2) {
+		width = width2;
+		// offset, ':', hex with a space per pair, two spaces, ascii, newline
+		line = new char[16 + 1 + width * 2 + (width + 1) / 2 + 2 + width * MAX_ASCII + 1];
+		lineBuffer = CharBuffer.wrap(line);
+	}
+
+	/**
+	 * Render a window of the data.
+	 * @param offset the first byte to render
+	 * @param length the number of bytes to render
+	 */
+	void dump(byte[] data, int offset, int length, Appendable out) throws IOException {
+		dump(data, offset, length, 0, out);
+	}
+
+	/**
+	 * Render a window of the data, which starts at base in a file.
+	 * @param base the file offset of data[0]
+	 */
+	void dump(byte[] data, int offset, int length, long base, Appendable out) throws IOException {
+		int end = offset + length;
+		int digits = Math.max(MIN_OFFSET_DIGITS, (67 - Long.numberOfLeadingZeros(Math.max(base + end - 1, 0))) / 4);
+		for (int lineStart = offset; lineStart < end; lineStart += width) {
+			int pos = 0;
+			long lineOffset = base + lineStart;
+			for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+				line[pos++] = HEX[(int) (lineOffset >>> shift) & 0xF];
+			}
+			line[pos++] = ':';
+			for (int i = 0; i < width; i++) {
+				if (i % 2 == 0) {
+					line[pos++] = ' ';
+				}
+				if (lineStart + i >= end) {
+					line[pos++] = ' ';
+					line[pos++] = ' ';
+					continue;
+				}
+				int b = data[lineStart + i] & 0xFF;
+				line[pos++] = HEX[b >>> 4];
+				line[pos++] = HEX[b & 0xF];
+			}
+			line[pos++] = ' ';
+			line[pos++] = ' ';
+			for (int i = 0; i < width && lineStart + i < end; i++) {
+				char[] ascii = ASCII[data[lineStart + i] & 0xFF];
+				for (int j = 0; j < ascii.length; j++) {
+					line[pos++] = ascii[j];
+				}
+			}
+			line[pos++] = '\n';
+			out.append(lineBuffer, 0, pos);
+		}
+	}
+}
@@ -7,13 +7,12 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Formatter;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Arrays;
 
 import plugins.KeyUtils.Configuration;
+import plugins.KeyUtils.ContentCache;
 import plugins.KeyUtils.GetResult;
 import plugins.KeyUtils.KeyExplorerUtils;
 import plugins.KeyUtils.KeyUtilsPlugin;
@@ -34,6 +33,7 @@ import freenet.l10n.PluginL10n;
 import freenet.support.HexUtil;
 import freenet.support.HTMLNode;
 import freenet.support.Logger;
+import freenet.support.URLEncoder;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
 import freenet.support.plugins.helpers1.PluginContext;
@@ -48,6 +48,13 @@ public class KeyExplorerToadlet extends WebInterfaceToadlet {
 
 	private static final String PARAM_AUTOMF = "automf";
 	private static final String PARAM_HEXWIDTH = "hexwidth";
+	private static final String PARAM_FULL = "full";
+
+	/** bytes per page of the content view */
+	private static final int DEFAULT_PAGE_SIZE = 8 * 1024;
+	private static final int MAX_PAGE_SIZE = 1024 * 1024;
+
+	private static final String MARKER_HEX = "hex";
 
 	private final PluginL10n _intl;
 
@@ -67,6 +74,9 @@ public class KeyExplorerToadlet extends WebInterfaceToadlet {
 		boolean deep;
 		boolean ml;
 		int hexWidth = request.getIntParam(PARAM_HEXWIDTH, Configuration.getHexWidth());
+		long offset = request.getLongParam(Globals.PARAM_OFFSET, 0);
+		int length = request.getIntParam(Globals.PARAM_LENGTH, -1);
+		boolean full = request.getParam(PARAM_FULL).length() > 0;
 		if (request.isParameterSet(PARAM_AUTOMF)) {
 			automf = request.getParam(PARAM_AUTOMF).length() > 0;
 		} else {
@@ -108,6 +118,11 @@ public class KeyExplorerToadlet extends WebInterfaceToadlet {
 			hexWidth = 32;
 		}
 
+		if (full && key != null) {
+			makeContentPage(ctx, errors, key, hexWidth, offset, length);
+			return;
+		}
+
 		try {
 			if (Globals.MFTYPE_ZIP.equals(type)) {
 				throw new RedirectException(KeyUtilsPlugin.PLUGIN_URI + "/Site/?mftype=ZIPmanifest&key=" + key + extraParams);
@@ -118,7 +133,7 @@ public class KeyExplorerToadlet extends WebInterfaceToadlet {
 			if (Globals.MFTYPE_SIMPLE.equals(type)) {
 				throw new RedirectException(KeyUtilsPlugin.PLUGIN_URI + "/Site/?mftype=simplemanifest&key=" + key + extraParams);
 			}
-			makeMainPage(ctx, errors, key, hexWidth, automf, deep, ml);
+			makeMainPage(ctx, errors, key, hexWidth, (int) Math.min(offset, Integer.MAX_VALUE), length, automf, deep, ml);
 		} catch (URISyntaxException e) {
 			this.sendErrorPage(ctx, "Internal Server Error", "Impossible URISyntaxException", e);
 		}
@@ -130,23 +145,34 @@ public class KeyExplorerToadlet extends WebInterfaceToadlet {
 
 		if (!isFormPassword(request)) {
 			errors.add("Invalid form password");
-			makeMainPage(ctx, errors, null, 0, false, false, false);
+			makeMainPage(ctx, errors, null, 0, 0, -1, false, false, false);
 			return;
 		}
 
 		String key = request.getPartAsString(Globals.PARAM_URI, 1024);
 		int hexWidth = request.getIntPart(PARAM_HEXWIDTH, 32);
+		int offset = request.getIntPart(Globals.PARAM_OFFSET, 0);
+		int length = request.getIntPart(Globals.PARAM_LENGTH, -1);
 		boolean automf = request.getPartAsString("automf", 128).length() > 0;
 		boolean deep = request.getPartAsString(Globals.PARAM_RECURSIVE, 128).length() > 0;
 		boolean ml = request.getPartAsString(Globals.PARAM_MULTILEVEL, 128).length() > 0;
+		boolean full = request.getPartAsString(PARAM_FULL, 128).length() > 0;
 		if (hexWidth < 1 || hexWidth > 1024) {
 			errors.add("Hex display columns out of range. (1-1024). Set to 32 (default).");
 			hexWidth = 32;
 		}
-		makeMainPage(ctx, errors, key, hexWidth, automf, deep, ml);
+		if (full) {
+			makeContentPage(ctx, errors, key, hexWidth, offset, length);
+			return;
+		}
+		makeMainPage(ctx, errors, key, hexWidth, offset, length, automf, deep, ml);
 	}
 
-	private void makeMainPage(ToadletContext ctx, List<String> errors, String key, int hexWidth, boolean automf, boolean deep, boolean ml) throws ToadletContextClosedException, IOException, RedirectException, URISyntaxException {
+	/**
+	 * @param offset the first byte of the hex view
+	 * @param length the number of bytes in the hex view, -1 for all
+	 */
+	private void makeMainPage(ToadletContext ctx, List<String> errors, String key, int hexWidth, int offset, int length, boolean automf, boolean deep, boolean ml) throws ToadletContextClosedException, IOException, RedirectException, URISyntaxException {
 		PageNode page = pluginContext.pageMaker.getPageNode(i18n("KeyExplorer.PageTitle"), ctx);
 		HTMLNode pageNode = page.outer;
 		HTMLNode contentNode = page.content;
@@ -194,7 +220,17 @@ public class KeyExplorerToadlet extends WebInterfaceToadlet {
 				getresult.free();
 		}
 
-		HTMLNode uriBox = createUriBox(pluginContext, ((furi == null) ? null : furi.toString(false, false)), hexWidth, automf, deep, errors);
+		if (data != null) {
+			if (offset < 0 || offset > data.length) {
+				errors.add("Hex display offset out of range. (0-" + data.length + "). Set to 0.");
+				offset = 0;
+			}
+			if (length < 0 || length > data.length - offset) {
+				length = data.length - offset;
+			}
+		}
+
+		HTMLNode uriBox = createUriBox(pluginContext, ((furi == null) ? null : furi.toString(false, false)), hexWidth, offset, length, automf, deep, errors);
 
 		if (errors.size() > 0) {
 			contentNode.addChild(createErrorBox(errors, path(), retryUri, extraParams));
@@ -234,11 +270,14 @@ public class KeyExplorerToadlet extends WebInterfaceToadlet {
 			String title = "Key: " + furi.toString(false, false);
 			if (getresult.isMetaData())
 				title = title + "\u00a0(MetaData)";
+			if (length < data.length)
+				title = title + "\u00a0bytes " + offset + "-" + (offset + length) + " of " + data.length;
 			HTMLNode dataBox2 = pluginContext.pageMaker.getInfobox("#", title, contentNode);
 
 			dataBox2.addChild("%", "<pre lang=\"en\" style=\"font-family: monospace;\">\n");
-			dataBox2.addChild("#", hexDump(data, hexWidth));
+			dataBox2.addChild(StreamingPage.marker(MARKER_HEX));
 			dataBox2.addChild("%", "\n</pre>");
+			dataBox2.addChild(new HTMLNode("a", "href", contentLink(furi.toString(false, false), hexWidth, 0, DEFAULT_PAGE_SIZE), "page through the complete content"));
 
 			if (getresult.isMetaData()) {
 				if (md != null) {
@@ -404,12 +443,127 @@ public class KeyExplorerToadlet extends WebInterfaceToadlet {
 			}
 			if (errors.size() > 0)
 				contentNode.addChild(createErrorBox(errors));
+			contentNode.addChild(Utils.makeDonateFooter(_intl));
+
+			// the hex view is rendered straight into the response
+			StreamingPage streamingPage = new StreamingPage(ctx, pageNode.generate(), MARKER_HEX);
+			streamingPage.start();
+			new HexDumper(hexWidth).dump(data, offset, length, streamingPage);
+			streamingPage.nextPart();
+			return;
 		}
 		contentNode.addChild(Utils.makeDonateFooter(_intl));
 		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
 	}
 
-	private HTMLNode createUriBox(PluginContext pCtx, String uri, int hexWidth, boolean automf, boolean deep, List<String> errors) {
+	/**
+	 * Page through the complete content of a key. The file is fetched once
+	 * and kept in the content cache, a page reads only its own window.
+	 */
+	private void makeContentPage(ToadletContext ctx, List<String> errors, String key, int hexWidth, long offset, int length) throws ToadletContextClosedException, IOException {
+		PageNode page = pluginContext.pageMaker.getPageNode(i18n("KeyExplorer.PageTitle"), ctx);
+		HTMLNode pageNode = page.outer;
+		HTMLNode contentNode = page.content;
+
+		if (length <= 0) {
+			length = DEFAULT_PAGE_SIZE;
+		} else if (length > MAX_PAGE_SIZE) {
+			errors.add("Page size out of range. (1-" + MAX_PAGE_SIZE + "). Set to " + MAX_PAGE_SIZE + ".");
+			length = MAX_PAGE_SIZE;
+		}
+
+		FreenetURI furi = null;
+		ContentCache.CachedContent content = null;
+		try {
+			furi = URISanitizer.sanitizeURI(errors, key, false, URISanitizer.Options.NOMETASTRINGS, URISanitizer.Options.SSKFORUSK);
+			content = KeyExplorerUtils.acquireContent(pluginContext.pluginRespirator, furi);
+		} catch (MalformedURLException e) {
+			errors.add("MalformedURL: " + key);
+		} catch (FetchException e) {
+			errors.add("Get failed (" + e.mode + "): " + e.getMessage());
+		}
+
+		if (content == null) {
+			contentNode.addChild(createErrorBox(errors, path(), furi, "&" + PARAM_FULL + "=checked&" + PARAM_HEXWIDTH + "=" + hexWidth));
+			contentNode.addChild(createContentNavigation(key, hexWidth, 0, length, -1));
+			contentNode.addChild(Utils.makeDonateFooter(_intl));
+			writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			return;
+		}
+		try {
+			String uri = furi.toString(false, false);
+			long size = content.size();
+			if (offset < 0 || offset > size) {
+				errors.add("Offset out of range. (0-" + size + "). Set to 0.");
+				offset = 0;
+			}
+			int windowLength = (int) Math.min(length, size - offset);
+			byte[] window = new byte[windowLength];
+			content.getData().pread(offset, window, 0, windowLength);
+
+			if (errors.size() > 0) {
+				contentNode.addChild(createErrorBox(errors));
+			}
+			contentNode.addChild(createContentNavigation(uri, hexWidth, offset, length, size));
+			String title = "Content of " + uri + "\u00a0bytes " + offset + "-" + (offset + windowLength) + " of " + size;
+			if (content.getMimeType() != null) {
+				title = title + "\u00a0(" + content.getMimeType() + ")";
+			}
+			HTMLNode dataBox = pluginContext.pageMaker.getInfobox("#", title, contentNode);
+			dataBox.addChild("%", "<pre lang=\"en\" style=\"font-family: monospace;\">\n");
+			dataBox.addChild(StreamingPage.marker(MARKER_HEX));
+			dataBox.addChild("%", "\n</pre>");
+			contentNode.addChild(Utils.makeDonateFooter(_intl));
+
+			StreamingPage streamingPage = new StreamingPage(ctx, pageNode.generate(), MARKER_HEX);
+			streamingPage.start();
+			new HexDumper(hexWidth).dump(window, 0, windowLength, offset, streamingPage);
+			streamingPage.nextPart();
+		} finally {
+			content.release();
+		}
+	}
+
+	/**
+	 * Previous/next links and a form to jump to an offset.
+	 * @param size the file size, -1 if unknown
+	 */
+	private HTMLNode createContentNavigation(String uri, int hexWidth, long offset, int length, long size) {
+		InfoboxNode box = pluginContext.pageMaker.getInfobox("Content view");
+		HTMLNode navContent = box.content;
+		if (size >= 0) {
+			if (offset > 0) {
+				navContent.addChild("a", "href", contentLink(uri, hexWidth, 0, length), "\u00ab first");
+				navContent.addChild("#", "\u00a0\u00a0");
+				navContent.addChild("a", "href", contentLink(uri, hexWidth, Math.max(0, offset - length), length), "\u2039 previous");
+				navContent.addChild("#", "\u00a0\u00a0");
+			}
+			if (offset + length < size) {
+				long last = ((size - 1) / length) * length;
+				navContent.addChild("a", "href", contentLink(uri, hexWidth, offset + length, length), "next \u203a");
+				navContent.addChild("#", "\u00a0\u00a0");
+				navContent.addChild("a", "href", contentLink(uri, hexWidth, last, length), "last \u00bb");
+			}
+		}
+		HTMLNode jumpForm = navContent.addChild("form", new String[] { "action", "method" }, new String[] { path(), "get" });
+		jumpForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", Globals.PARAM_URI, uri });
+		jumpForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", PARAM_FULL, "checked" });
+		jumpForm.addChild("#", "Offset:\u00a0");
+		jumpForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_OFFSET, "12", Long.toString(offset) });
+		jumpForm.addChild("#", "\u00a0Page size:\u00a0");
+		jumpForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_LENGTH, "7", Integer.toString(length) });
+		jumpForm.addChild("#", "\u00a0Hex display columns:\u00a0");
+		jumpForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", PARAM_HEXWIDTH, "3", Integer.toString(hexWidth) });
+		jumpForm.addChild("#", "\u00a0");
+		jumpForm.addChild("input", new String[] { "type", "value" }, new String[] { "submit", "Jump" });
+		return box.outer;
+	}
+
+	private String contentLink(String uri, int hexWidth, long offset, int length) {
+		return path() + "?" + PARAM_FULL + "=checked&" + Globals.PARAM_URI + "=" + URLEncoder.encode(uri, false) + "&" + PARAM_HEXWIDTH + "=" + hexWidth + "&" + Globals.PARAM_OFFSET + "=" + offset + "&" + Globals.PARAM_LENGTH + "=" + length;
+	}
+
+	private HTMLNode createUriBox(PluginContext pCtx, String uri, int hexWidth, int offset, int length, boolean automf, boolean deep, List<String> errors) {
 		InfoboxNode box = pCtx.pageMaker.getInfobox("Explore a freenet key");
 		HTMLNode browseBox = box.outer;
 		HTMLNode browseContent = box.content;
@@ -440,47 +594,16 @@ public class KeyExplorerToadlet extends WebInterfaceToadlet {
 		browseForm.addChild("#", "\u00a0parse manifest recursive (include multilevel metadata/subcontainers)\u00a0\u00a0");
 		browseForm.addChild("#", "Hex display columns:\u00a0");
 		browseForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", PARAM_HEXWIDTH, "3", Integer.toString(hexWidth) });
+		browseForm.addChild("#", "\u00a0\u00a0Offset:\u00a0");
+		browseForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_OFFSET, "7", Integer.toString(offset) });
+		browseForm.addChild("#", "\u00a0Length:\u00a0");
+		browseForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_LENGTH, "7", (length < 0) ? "" : Integer.toString(length) });
+		browseForm.addChild("br");
+		browseForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "checkbox", PARAM_FULL, "ok" });
+		browseForm.addChild("#", "\u00a0page through the complete content instead of the top level chunk (fetches the whole file)");
 		return browseBox;
 	}
 
-	private String hexDump(byte[] data, int width) {
-		StringBuilder sb = new StringBuilder();
-		Formatter formatter = new Formatter(sb, Locale.US);
-
-		try {
-			for (int offset = 0; offset < data.length; offset += width) {
-				formatter.format("%07X:", offset);
-
-				for (int i = 0; i < width; i++) {
-					if (i % 2 == 0)
-						formatter.out().append(' ');
-					if (i + offset >= data.length) {
-						formatter.out().append("  ");
-						continue;
-					}
-					formatter.format("%02X", data[i + offset]);
-				}
-
-				formatter.out().append("  ");
-				for (int i = 0; i < width; i++) {
-					if (i + offset >= data.length)
-						break;
-
-					if (data[i + offset] >= 32 && data[i + offset] < 127) {
-						formatter.out().append((char) data[i + offset]);
-					} else
-						formatter.out().append('.');
-				}
-				formatter.out().append('\n');
-			}
-		} catch (IOException e) {
-			// impossible
-		}
-
-		formatter.flush();
-		return sb.toString();
-	}
-
 	private String i18n(String key) {
 		return _intl.getBase().getString(key);
 	}
@@ -0,0 +1,188 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils.toadlets;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Locale;
+
+import plugins.KeyUtils.ManifestIndex;
+import freenet.client.Metadata;
+
+/**
+ * Flattened result of a manifest walk, one index entry per table row in
+ * walk order. Kept per exploration, so paging and sorting does not walk
+ * (and fetch) the manifest again. Only the index is kept, not the metadata.
+ */
+class ManifestListing {
+
+	enum Sort {
+		/** walk order */
+		NONE,
+		NAME,
+		SIZE,
+		MIME,
+		TYPE;
+
+		static Sort fromParam(String param) {
+			if (param == null || param.length() == 0) {
+				return NONE;
+			}
+			try {
+				return valueOf(param.toUpperCase(Locale.ENGLISH));
+			} catch (IllegalArgumentException e) {
+				return NONE;
+			}
+		}
+
+		String toParam() {
+			return name().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	private final ManifestIndex index = new ManifestIndex();
+	private final EnumMap<Sort, int[]> sorted = new EnumMap<Sort, int[]>(Sort.class);
+
+	/**
+	 * Add a document while the listing is built, not to be called afterwards.
+	 */
+	void add(String prefix, String name, Metadata md, int nestedLevel, int subLevel) {
+		index.add(prefix, name, md, nestedLevel, subLevel);
+	}
+
+	/**
+	 * Add an error row while the listing is built.
+	 */
+	void addError(String message) {
+		index.addError(message);
+	}
+
+	/**
+	 * The listing is built, release the spare capacity.
+	 */
+	void complete() {
+		index.trim();
+	}
+
+	ManifestIndex getIndex() {
+		return index;
+	}
+
+	int size() {
+		return index.size();
+	}
+
+	/**
+	 * @param limit max number of rows, 0 or less for all
+	 * @return the index entries of one page in the given order
+	 */
+	synchronized int[] getRows(Sort sort, int offset, int limit) {
+		int size = index.size();
+		if (offset < 0) {
+			offset = 0;
+		}
+		if (offset >= size) {
+			return new int[0];
+		}
+		int end = (limit <= 0) ? size : (int) Math.min((long) offset + limit, size);
+		if (sort == Sort.NONE) {
+			int[] rows = new int[end - offset];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = offset + i;
+			}
+			return rows;
+		}
+		int[] order = sorted.get(sort);
+		if (order == null) {
+			Integer[] boxed = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				boxed[i] = i;
+			}
+			// stable, equal rows stay in walk order
+			Arrays.sort(boxed, comparator(sort));
+			order = new int[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = boxed[i];
+			}
+			sorted.put(sort, order);
+		}
+		return Arrays.copyOfRange(order, offset, end);
+	}
+
+	/**
+	 * @return the sort key of the row as shown in the mime column
+	 */
+	private String getMime(int i) {
+		if (index.getType(i) == ManifestIndex.Type.ERROR) {
+			return "";
+		}
+		if (index.hasFlag(i, ManifestIndex.FLAG_NO_MIME)) {
+			return "<NoMime>";
+		}
+		String mime = index.getMimeType(i);
+		return (mime == null) ? "" : mime;
+	}
+
+	/**
+	 * @return the sort key of the row as shown in the type column
+	 */
+	private String getType(int i) {
+		switch (index.getType(i)) {
+		case ERROR:
+			return "";
+		case UNKNOWN:
+			return "?";
+		default:
+			return index.getType(i).name();
+		}
+	}
+
+	private Comparator<Integer> comparator(Sort sort) {
+		switch (sort) {
+		case NAME:
+			final String[] paths = index.getPaths();
+			return new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return paths[a].compareTo(paths[b]);
+				}
+			};
+		case SIZE:
+			return new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					// biggest first
+					long sa = index.getSize(a);
+					long sb = index.getSize(b);
+					return (sa < sb) ? 1 : ((sa == sb) ? 0 : -1);
+				}
+			};
+		case MIME:
+			final String[] mimes = new String[index.size()];
+			for (int i = 0; i < mimes.length; i++) {
+				mimes[i] = getMime(i);
+			}
+			return new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return mimes[a].compareTo(mimes[b]);
+				}
+			};
+		case TYPE:
+			final String[] types = new String[index.size()];
+			for (int i = 0; i < types.length; i++) {
+				types[i] = getType(i);
+			}
+			return new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return types[a].compareTo(types[b]);
+				}
+			};
+		default:
+			throw new IllegalArgumentException("Unknown sort order: " + sort);
+		}
+	}
+}
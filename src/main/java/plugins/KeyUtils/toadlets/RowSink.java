@@ -0,0 +1,30 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils.toadlets;
+
+import freenet.support.HTMLNode;
+
+/**
+ * Receives the rows of a table one by one. A row may still be filled
+ * until the next row is added.
+ */
+interface RowSink {
+
+	/**
+	 * @return a new empty row
+	 */
+	HTMLNode addRow();
+
+	void addRow(HTMLNode row);
+
+	/**
+	 * Pass on the rows so far, called before waiting for something.
+	 */
+	void flush();
+
+	/**
+	 * @return true if nobody is listening anymore (client gone)
+	 */
+	boolean isClosed();
+}
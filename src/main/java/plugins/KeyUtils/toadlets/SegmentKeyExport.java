@@ -0,0 +1,153 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils.toadlets;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import plugins.KeyUtils.SegmentKeyTable;
+
+import freenet.clients.http.ToadletContext;
+import freenet.clients.http.ToadletContextClosedException;
+import freenet.support.MultiValueTable;
+
+/**
+ * Streams the block keys of a splitfile as plain text, CSV or JSON.
+ *
+ * One line per block: segment, block number, type (data or check) and
+ * the CHK. Block numbers count data and check blocks separately, as on
+ * the segment pages. The output is written in chunks while it is
+ * generated, nothing is held for the whole list.
+ */
+class SegmentKeyExport {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** collect this much output before writing it out */
+	private static final int FLUSH_SIZE = 16 * 1024;
+
+	enum Format {
+		TEXT("text/plain; charset=utf-8", "txt"),
+		CSV("text/csv; charset=utf-8", "csv"),
+		JSON("application/json; charset=utf-8", "json");
+
+		final String mimeType;
+		final String extension;
+
+		Format(String mimeType2, String extension2) {
+			mimeType = mimeType2;
+			extension = extension2;
+		}
+
+		/**
+		 * @return the format, null if unknown
+		 */
+		static Format fromParam(String param) {
+			try {
+				return valueOf(param.toUpperCase(Locale.ENGLISH));
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+
+		String toParam() {
+			return name().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	private final ToadletContext ctx;
+	private final Format format;
+	private final StringBuilder buffer = new StringBuilder(FLUSH_SIZE + 1024);
+
+	SegmentKeyExport(ToadletContext ctx2, Format format2) {
+		ctx = ctx2;
+		format = format2;
+	}
+
+	/**
+	 * Send the headers and all keys of the table.
+	 * @param uri the splitfile the keys belong to, only used in the JSON header
+	 */
+	void write(SegmentKeyTable keys, String uri, int level) throws ToadletContextClosedException, IOException {
+		MultiValueTable<String, String> head = new MultiValueTable<String, String>();
+		head.put("Content-Disposition", "attachment; filename=\"segment-keys." + format.extension + "\"");
+		ctx.forceDisconnect();
+		ctx.sendReplyHeaders(200, "OK", head, format.mimeType, -1);
+
+		switch (format) {
+		case CSV:
+			buffer.append("segment,block,type,key\n");
+			break;
+		case JSON:
+			buffer.append("{\"uri\":");
+			appendJSONString(uri);
+			buffer.append(",\"level\":").append(level);
+			buffer.append(",\"segments\":").append(keys.getSegmentCount());
+			buffer.append(",\"blocks\":[\n");
+			break;
+		default:
+			break;
+		}
+		boolean first = true;
+		for (int segment = 0; segment < keys.getSegmentCount(); segment++) {
+			int dataBlocks = keys.getDataBlocks(segment);
+			int total = keys.getTotalBlocks(segment);
+			for (int i = 0; i < total; i++) {
+				boolean data = i < dataBlocks;
+				writeLine(segment, data ? i : i - dataBlocks, data ? "data" : "check", keys.getURI(segment, i).toString(false, false), first);
+				first = false;
+				if (buffer.length() >= FLUSH_SIZE) {
+					flush();
+				}
+			}
+		}
+		if (format == Format.JSON) {
+			buffer.append("\n]}\n");
+		}
+		flush();
+	}
+
+	private void writeLine(int segment, int block, String type, String key, boolean first) {
+		switch (format) {
+		case CSV:
+			// CHKs contain commas
+			buffer.append(segment).append(',').append(block).append(',').append(type).append(",\"").append(key).append("\"\n");
+			break;
+		case JSON:
+			if (!first) {
+				buffer.append(",\n");
+			}
+			buffer.append("{\"segment\":").append(segment).append(",\"block\":").append(block);
+			buffer.append(",\"type\":\"").append(type).append("\",\"key\":");
+			appendJSONString(key);
+			buffer.append('}');
+			break;
+		default:
+			buffer.append(segment).append('\t').append(block).append('\t').append(type).append('\t').append(key).append('\n');
+		}
+	}
+
+	private void appendJSONString(String s) {
+		buffer.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				buffer.append('\\').append(c);
+			} else if (c < 0x20) {
+				buffer.append(String.format("\\u%04x", (int) c));
+			} else {
+				buffer.append(c);
+			}
+		}
+		buffer.append('"');
+	}
+
+	private void flush() throws ToadletContextClosedException, IOException {
+		if (buffer.length() == 0) {
+			return;
+		}
+		ctx.writeData(buffer.toString().getBytes(UTF8));
+		buffer.setLength(0);
+	}
+}
@@ -7,14 +7,27 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import plugins.KeyUtils.Configuration;
+import plugins.KeyUtils.FetchCallback;
+import plugins.KeyUtils.FetchHandle;
+import plugins.KeyUtils.FetchQueue;
 import plugins.KeyUtils.KeyExplorerUtils;
 import plugins.KeyUtils.KeyUtilsPlugin;
+import plugins.KeyUtils.ManifestIndex;
+import plugins.KeyUtils.ManifestPathResolver;
+import plugins.KeyUtils.ManifestPathResolver.Resolution;
+import plugins.KeyUtils.SiteDiff;
+import plugins.KeyUtils.SiteDiff.Change;
+import plugins.KeyUtils.toadlets.ManifestListing.Sort;
 import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.Metadata;
 import freenet.client.MetadataParseException;
 import freenet.client.ArchiveManager.ARCHIVE_TYPE;
@@ -44,8 +57,37 @@ public class SiteExplorerToadlet extends WebInterfaceToadlet {
 		Logger.registerClass(SiteExplorerToadlet.class);
 	}
 
+	private static final String MARKER_ROWS = "rows";
+	private static final String MARKER_PAGER = "pager";
+	private static final String MARKER_ERRORS = "errors";
+
+	/** rows per page if not given */
+	private static final int DEFAULT_LIMIT = 500;
+	/** number of walked manifests kept for paging and sorting */
+	private static final int MAX_LISTINGS = 8;
+
 	private final PluginL10n _intl;
 
+	/** recently walked manifests, by manifest type, options and uri */
+	private final LinkedHashMap<String, ManifestListing> listings = new LinkedHashMap<String, ManifestListing>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ManifestListing> eldest) {
+			return size() > MAX_LISTINGS;
+		}
+	};
+
+	/** recently used path resolvers, they keep the sub metadata fetched for earlier jumps */
+	private final LinkedHashMap<String, ManifestPathResolver> resolvers = new LinkedHashMap<String, ManifestPathResolver>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ManifestPathResolver> eldest) {
+			return size() > MAX_LISTINGS;
+		}
+	};
+
 	public SiteExplorerToadlet(PluginContext context, PluginL10n intl) {
 		super(context, KeyUtilsPlugin.PLUGIN_URI, "Site");
 		_intl = intl;
@@ -76,18 +118,30 @@ public class SiteExplorerToadlet extends WebInterfaceToadlet {
 			type = null;
 		}
 
+		Sort sort = Sort.fromParam(request.getParam(Globals.PARAM_SORT));
+		int offset = request.getIntParam(Globals.PARAM_OFFSET, 0);
+		int limit = request.getIntParam(Globals.PARAM_LIMIT, DEFAULT_LIMIT);
+
 		List<String> errors = new LinkedList<String>();
 
+		if (key != null && request.getParam(Globals.PARAM_NEWURI).trim().length() > 0) {
+			makeDiffPage(ctx, errors, key, request.getParam(Globals.PARAM_NEWURI));
+			return;
+		}
+		if (request.isParameterSet(Globals.PARAM_PATH) && (Globals.MFTYPE_ZIP.equals(type) || Globals.MFTYPE_TAR.equals(type) || Globals.MFTYPE_SIMPLE.equals(type))) {
+			makePathPage(ctx, errors, key, Globals.MFTYPE_ZIP.equals(type), Globals.MFTYPE_TAR.equals(type), deep, ml, request.getParam(Globals.PARAM_PATH));
+			return;
+		}
 		if (Globals.MFTYPE_ZIP.equals(type)) {
-			makeManifestPage(ctx, errors, key, true, false, deep, ml);
+			makeManifestPage(ctx, errors, key, true, false, deep, ml, sort, offset, limit);
 			return;
 		}
 		if (Globals.MFTYPE_TAR.equals(type)) {
-			makeManifestPage(ctx, errors, key, false, true, deep, ml);
+			makeManifestPage(ctx, errors, key, false, true, deep, ml, sort, offset, limit);
 			return;
 		}
 		if (Globals.MFTYPE_SIMPLE.equals(type)) {
-			makeManifestPage(ctx, errors, key, false, false, deep, ml);
+			makeManifestPage(ctx, errors, key, false, false, deep, ml, sort, offset, limit);
 			return;
 		}
 		makeMainPage(ctx, errors, key, deep, ml);
@@ -202,6 +256,7 @@ public class SiteExplorerToadlet extends WebInterfaceToadlet {
 		}
 
 		contentNode.addChild(uriBox);
+		contentNode.addChild(createDiffBox(((furi == null) ? null : furi.toString(false, false)), null));
 		contentNode.addChild(Utils.makeDonateFooter(_intl));
 		writeHTMLReply(ctx, 200, "OK", outer.generate());
 	}
@@ -232,26 +287,30 @@ public class SiteExplorerToadlet extends WebInterfaceToadlet {
 	}
 
 	private void makeManifestPage(ToadletContext ctx, List<String> errors, String key, boolean zip, boolean tar, boolean deep, boolean ml) throws ToadletContextClosedException, IOException {
+		makeManifestPage(ctx, errors, key, zip, tar, deep, ml, Sort.NONE, 0, DEFAULT_LIMIT);
+	}
+
+	private void makeManifestPage(ToadletContext ctx, List<String> errors, String key, boolean zip, boolean tar, boolean deep, boolean ml, Sort sort, int offset, int limit) throws ToadletContextClosedException, IOException {
 		PageNode page = pluginContext.pageMaker.getPageNode(i18n("SiteExplorer.PageTitle"), ctx);
 		HTMLNode pageNode = page.outer;
 		HTMLNode contentNode = page.content;
 
 		Metadata metadata = null;
+		ManifestListing listing = null;
+		String listingKey = null;
 
 		FreenetURI furi = null;
 
 		try {
 			furi = URISanitizer.sanitizeURI(errors, key, false, URISanitizer.Options.NOMETASTRINGS, URISanitizer.Options.SSKFORUSK);
-			
-			if (zip)
-				metadata = KeyExplorerUtils.zipManifestGet(pluginContext.pluginRespirator, furi);
-			else if (tar)
-				metadata = KeyExplorerUtils.tarManifestGet(pluginContext.pluginRespirator, furi, ".metadata");
-			else {
-				metadata = KeyExplorerUtils.simpleManifestGet(pluginContext.pluginRespirator, furi);
-				if (ml) {
-					metadata = KeyExplorerUtils.splitManifestGet(pluginContext.pluginRespirator, metadata);
-				}
+			// the content behind a mutable key may change, walk it again every time
+			if (KeyExplorerUtils.isImmutable(furi)) {
+				listingKey = (zip ? Globals.MFTYPE_ZIP : (tar ? Globals.MFTYPE_TAR : Globals.MFTYPE_SIMPLE)) + ':' + deep + ':' + ml + ':' + furi.toString(false, false);
+				listing = getListing(listingKey);
+			}
+
+			if (listing == null) {
+				metadata = getManifest(furi, zip, tar, ml);
 			}
 		} catch (MalformedURLException e) {
 			errors.add("MalformedURL: " + key);
@@ -270,44 +329,458 @@ public class SiteExplorerToadlet extends WebInterfaceToadlet {
 			return;
 		}
 
-		contentNode.addChild(createUriBox(pluginContext, furi.toString(false, false), deep, errors));
-		String title = "Key: " + furi.toString(false, false) + "\u00a0(Manifest)";
+		String uri = furi.toString(false, false);
+		ListingLink link = new ListingLink(uri, zip, tar, deep, ml, sort, offset, limit);
+
+		contentNode.addChild(createUriBox(pluginContext, uri, deep, errors));
+		contentNode.addChild(createPathBox(uri, zip, tar, deep, ml, ""));
+		String title = "Key: " + uri + "\u00a0(Manifest)";
 		InfoboxNode listInfobox = pluginContext.pageMaker.getInfobox(title);
 		HTMLNode listBox = listInfobox.content;
 
 		// HTMLNode contentTable = contentNode.addChild("table", "class", "column");
 		HTMLNode contentTable = listBox.addChild("table");
-		HTMLNode tableHead = contentTable.addChild("thead");
+		contentTable.addChild(makeTableHead(link));
+
+		// the rows are streamed into the page while the manifest is walked
+		contentTable.addChild(StreamingPage.marker(MARKER_ROWS));
+		listBox.addChild(StreamingPage.marker(MARKER_PAGER));
+		contentNode.addChild(listInfobox.outer);
+		contentNode.addChild(StreamingPage.marker(MARKER_ERRORS));
+		StreamingPage streamingPage = new StreamingPage(ctx, pageNode.generate(), MARKER_ROWS, MARKER_PAGER, MARKER_ERRORS);
+
+		streamingPage.start();
+		if (listing == null) {
+			listing = new ManifestListing();
+			// in walk order the rows of the page can be sent while walking
+			boolean live = (sort == Sort.NONE);
+			ListingCollector collector = new ListingCollector(listing, live ? streamingPage : null, uri, containerType(zip, tar), offset, limit);
+			Prefetcher prefetcher = null;
+			if (deep) {
+				// start fetching all sub metadata up front, the table is still built in order
+				prefetcher = new Prefetcher(uri, streamingPage);
+				prefetcher.walk(metadata);
+			}
+			try {
+				parseMetadataItem(collector, "", metadata, "", uri, errors, deep, prefetcher, 0, -1);
+			} finally {
+				if (prefetcher != null) {
+					prefetcher.cancel();
+				}
+			}
+			listing.complete();
+			if (!collector.isClosed() && listingKey != null) {
+				// only complete walks are kept
+				putListing(listingKey, listing);
+			}
+			if (!live) {
+				writeRows(streamingPage, listing, sort, offset, limit, uri, containerType(zip, tar));
+			}
+		} else {
+			writeRows(streamingPage, listing, sort, offset, limit, uri, containerType(zip, tar));
+		}
+		streamingPage.nextPart();
+		streamingPage.write(makePager(link, listing.size()));
+		streamingPage.nextPart();
+		if (errors.size() > 0) {
+			streamingPage.write(createErrorBox(errors));
+		}
+		streamingPage.nextPart();
+	}
+
+	private HTMLNode createDiffBox(String oldUri, String newUri) {
+		InfoboxNode box = pluginContext.pageMaker.getInfobox("Compare two sites");
+		box.content.addChild("#", "List what changed between two sites, usually two editions of a USK");
+		HTMLNode form = box.content.addChild("form", new String[] { "action", "method" }, new String[] { path(), "get" });
+		form.addChild("br");
+		form.addChild("#", "Old site: \u00a0 ");
+		form.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_URI, "70", (oldUri == null) ? "" : oldUri });
+		form.addChild("br");
+		form.addChild("#", "New site: \u00a0 ");
+		form.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_NEWURI, "70", (newUri == null) ? "" : newUri });
+		form.addChild("#", "\u00a0");
+		form.addChild("input", new String[] { "type", "value" }, new String[] { "submit", "Compare!" });
+		return box.outer;
+	}
+
+	/**
+	 * Show the differences between two sites. Both are fetched at the same
+	 * time, identical sub manifests and containers are not looked into.
+	 */
+	private void makeDiffPage(ToadletContext ctx, List<String> errors, String oldKey, String newKey) throws ToadletContextClosedException, IOException {
+		PageNode page = pluginContext.pageMaker.getPageNode(i18n("SiteExplorer.PageTitle"), ctx);
+		HTMLNode pageNode = page.outer;
+		HTMLNode contentNode = page.content;
+
+		FreenetURI oldUri = null;
+		FreenetURI newUri = null;
+		SiteDiff.Result result = null;
+
+		try {
+			oldUri = URISanitizer.sanitizeURI(errors, oldKey, false, URISanitizer.Options.NOMETASTRINGS, URISanitizer.Options.SSKFORUSK);
+			newUri = URISanitizer.sanitizeURI(errors, newKey, false, URISanitizer.Options.NOMETASTRINGS, URISanitizer.Options.SSKFORUSK);
+			result = SiteDiff.diff(pluginContext.pluginRespirator, oldUri, newUri);
+		} catch (MalformedURLException e) {
+			errors.add("MalformedURL: " + e.getMessage());
+		} catch (FetchException e) {
+			errors.add("Get failed (" + e.mode + "): " + e.getMessage());
+		}
+
+		String oldString = (oldUri == null) ? oldKey : oldUri.toString(false, false);
+		String newString = (newUri == null) ? newKey : newUri.toString(false, false);
+		if (errors.size() > 0) {
+			contentNode.addChild(createErrorBox(errors));
+			contentNode.addChild(createDiffBox(oldString, newString));
+			writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			return;
+		}
+
+		contentNode.addChild(createDiffBox(oldString, newString));
+		InfoboxNode diffInfobox = pluginContext.pageMaker.getInfobox("Changes: " + result.getChanges().size() + "\u00a0(" + result.getSkipped() + " identical sub manifests/containers skipped)");
+		HTMLNode diffBox = diffInfobox.content;
+		diffBox.addChild("div", "Old: " + oldString);
+		diffBox.addChild("div", "New: " + newString);
+
+		HTMLNode contentTable = diffBox.addChild("table");
+		HTMLNode tableRow = contentTable.addChild("thead").addChild("tr");
+		tableRow.addChild("th", "Change");
+		tableRow.addChild("th", "Name");
+		tableRow.addChild("th", "Old type");
+		tableRow.addChild("th", "Old size");
+		tableRow.addChild("th", "Old target");
+		tableRow.addChild("th", "New type");
+		tableRow.addChild("th", "New size");
+		tableRow.addChild("th", "New target");
+		for (Change change : result.getChanges()) {
+			HTMLNode row = contentTable.addChild("tr");
+			row.addChild(makeCell(change.getType().name()));
+			row.addChild(makeCell('/' + change.getPath()));
+			addDiffCells(row, change.getOldMetadata());
+			addDiffCells(row, change.getNewMetadata());
+		}
+		contentNode.addChild(diffInfobox.outer);
+		if (result.getErrors().size() > 0) {
+			contentNode.addChild(createErrorBox(result.getErrors()));
+		}
+		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+	}
+
+	private void addDiffCells(HTMLNode row, Metadata md) {
+		if (md == null) {
+			row.addChild(makeEmptyCell());
+			row.addChild(makeEmptyCell());
+			row.addChild(makeEmptyCell());
+			return;
+		}
+		ManifestIndex index = new ManifestIndex();
+		index.add("", "", md, 0, -1);
+		row.addChild(makeTypeCell(index, 0));
+		row.addChild(makeSizeCell(index, 0));
+		if (md.getSingleTarget() != null) {
+			String target = md.getSingleTarget().toString(false, false);
+			row.addChild(makeCell(new HTMLNode("a", "href", KeyUtilsPlugin.PLUGIN_URI + "/?key=" + target, target)));
+		} else if (md.isArchiveInternalRedirect() || md.isArchiveMetadataRedirect()) {
+			row.addChild(makeCell(md.getArchiveInternalName()));
+		} else {
+			row.addChild(makeEmptyCell());
+		}
+	}
+
+	/**
+	 * Show a single document of a site, looked up by its path. Only the sub
+	 * metadata on the path is fetched, not the whole site.
+	 */
+	private void makePathPage(ToadletContext ctx, List<String> errors, String key, boolean zip, boolean tar, boolean deep, boolean ml, String path) throws ToadletContextClosedException, IOException {
+		PageNode page = pluginContext.pageMaker.getPageNode(i18n("SiteExplorer.PageTitle"), ctx);
+		HTMLNode pageNode = page.outer;
+		HTMLNode contentNode = page.content;
+
+		FreenetURI furi = null;
+		Resolution resolution = null;
+
+		try {
+			furi = URISanitizer.sanitizeURI(errors, key, false, URISanitizer.Options.NOMETASTRINGS, URISanitizer.Options.SSKFORUSK);
+			String resolverKey = (zip ? Globals.MFTYPE_ZIP : (tar ? Globals.MFTYPE_TAR : Globals.MFTYPE_SIMPLE)) + ':' + ml + ':' + furi.toString(false, false);
+			// the content behind a mutable key may change, resolve it afresh every time
+			boolean cacheable = KeyExplorerUtils.isImmutable(furi);
+			ManifestPathResolver resolver = null;
+			if (cacheable) {
+				synchronized (resolvers) {
+					resolver = resolvers.get(resolverKey);
+				}
+			}
+			if (resolver == null) {
+				resolver = new ManifestPathResolver(pluginContext.pluginRespirator, furi, getManifest(furi, zip, tar, ml));
+				if (cacheable) {
+					synchronized (resolvers) {
+						resolvers.put(resolverKey, resolver);
+					}
+				}
+			}
+			resolution = resolver.resolve(path);
+		} catch (MalformedURLException e) {
+			errors.add("MalformedURL: " + key);
+		} catch (FetchException e) {
+			errors.add("Get failed (" + e.mode + "): " + e.getMessage());
+		} catch (IOException e) {
+			errors.add("IO Error: " + e.getMessage());
+		} catch (MetadataParseException e) {
+			errors.add("MetadataParseException");
+		}
+
+		String uri = (furi == null) ? "" : furi.toString(false, false);
+		if (errors.size() > 0) {
+			contentNode.addChild(createErrorBox(errors));
+			contentNode.addChild(createUriBox(pluginContext, uri, deep, errors));
+			if (furi != null) {
+				contentNode.addChild(createPathBox(uri, zip, tar, deep, ml, path));
+			}
+			writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			return;
+		}
+
+		contentNode.addChild(createUriBox(pluginContext, uri, deep, errors));
+		contentNode.addChild(createPathBox(uri, zip, tar, deep, ml, resolution.getPath()));
+		InfoboxNode listInfobox = pluginContext.pageMaker.getInfobox("Key: " + uri + "\u00a0Path: /" + resolution.getPath());
+		HTMLNode contentTable = listInfobox.content.addChild("table");
+		contentTable.addChild(makeTableHead(null));
+
+		// same prefix and name split as in a walk, the top level has neither
+		String fname = (resolution.getPath().length() == 0) ? "" : '/' + resolution.getPath();
+		int slash = fname.lastIndexOf('/');
+		String prefix = fname.substring(0, slash + 1);
+		String name = fname.substring(slash + 1);
+		Metadata md = resolution.getMetadata();
+		int nestedLevel = resolution.getNestedLevel();
+		ARCHIVE_TYPE container = containerType(zip, tar);
+		ManifestIndex index = new ManifestIndex();
+		index.add(prefix, name, md, nestedLevel, -1);
+		if (md.isSimpleManifest()) {
+			// a directory, list what is in it
+			Metadata defaultDoc = md.getDefaultDocument();
+			if (defaultDoc != null) {
+				index.add(fname, "/", defaultDoc, nestedLevel, 0);
+			}
+			for (Entry<String, Metadata> entry : md.getDocuments().entrySet()) {
+				index.add(fname + '/', entry.getKey(), entry.getValue(), nestedLevel, 0);
+			}
+		}
+		for (int i = 0; i < index.size(); i++) {
+			contentTable.addChild(makeRow(index, i, uri, container));
+		}
+		contentNode.addChild(listInfobox.outer);
+		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+	}
+
+	private HTMLNode createPathBox(String uri, boolean zip, boolean tar, boolean deep, boolean ml, String path) {
+		InfoboxNode box = pluginContext.pageMaker.getInfobox("Jump to path");
+		HTMLNode form = box.content.addChild("form", new String[] { "action", "method" }, new String[] { path(), "get" });
+		form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", Globals.PARAM_MFTYPE, zip ? Globals.MFTYPE_ZIP : (tar ? Globals.MFTYPE_TAR : Globals.MFTYPE_SIMPLE) });
+		form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", Globals.PARAM_URI, uri });
+		form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", Globals.PARAM_RECURSIVE, deep ? "checked" : "" });
+		form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", Globals.PARAM_MULTILEVEL, ml ? "checked" : "" });
+		form.addChild("#", "Path inside the site: \u00a0 ");
+		form.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_PATH, "70", path });
+		form.addChild("#", "\u00a0");
+		form.addChild("input", new String[] { "type", "value" }, new String[] { "submit", "Jump!" });
+		return box.outer;
+	}
+
+	/**
+	 * @param link to make the column titles sort links, null for plain titles
+	 */
+	private HTMLNode makeTableHead(ListingLink link) {
+		HTMLNode tableHead = new HTMLNode("thead");
 		HTMLNode tableRow = tableHead.addChild("tr");
 		HTMLNode nextTableCell = tableRow.addChild("th");
 		nextTableCell.addChild("#", "\u00a0");
 		nextTableCell = tableRow.addChild("th");
-		nextTableCell.addChild("#", "Type");
+		addColumnTitle(nextTableCell, link, Sort.TYPE, "Type");
 		nextTableCell = tableRow.addChild("th");
-		nextTableCell.addChild("#", "Name");
+		addColumnTitle(nextTableCell, link, Sort.NAME, "Name");
 		nextTableCell = tableRow.addChild("th");
-		nextTableCell.addChild("#", "Size");
+		addColumnTitle(nextTableCell, link, Sort.SIZE, "Size");
 		nextTableCell = tableRow.addChild("th");
-		nextTableCell.addChild("#", "Mime");
+		addColumnTitle(nextTableCell, link, Sort.MIME, "Mime");
 		nextTableCell = tableRow.addChild("th");
 		nextTableCell.addChild("#", "Target");
+		return tableHead;
+	}
 
-		parseMetadataItem(contentTable, "", metadata, "", furi.toString(false, false), errors, deep, 0, -1);
-		if (errors.size() > 0) {
-			contentNode.addChild(createErrorBox(errors));
+	private void addColumnTitle(HTMLNode cell, ListingLink link, Sort sort, String title) {
+		if (link == null) {
+			cell.addChild("#", title);
+		} else {
+			cell.addChild(link.sortedBy(sort, title));
 		}
-		contentNode.addChild(listInfobox.outer);
+	}
 
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+	/**
+	 * Fetch the top level manifest of a site.
+	 */
+	private Metadata getManifest(FreenetURI furi, boolean zip, boolean tar, boolean ml) throws FetchException, MetadataParseException, IOException {
+		if (zip) {
+			return KeyExplorerUtils.zipManifestGet(pluginContext.pluginRespirator, furi);
+		}
+		if (tar) {
+			return KeyExplorerUtils.tarManifestGet(pluginContext.pluginRespirator, furi, ".metadata");
+		}
+		Metadata metadata = KeyExplorerUtils.simpleManifestGet(pluginContext.pluginRespirator, furi);
+		if (ml) {
+			metadata = KeyExplorerUtils.splitManifestGet(pluginContext.pluginRespirator, metadata);
+		}
+		return metadata;
+	}
+
+	private void writeRows(RowSink rows, ManifestListing listing, Sort sort, int offset, int limit, String furi, ARCHIVE_TYPE container) {
+		for (int row : listing.getRows(sort, offset, limit)) {
+			if (rows.isClosed()) {
+				return;
+			}
+			rows.addRow(makeRow(listing.getIndex(), row, furi, container));
+		}
+	}
+
+	private HTMLNode makePager(ListingLink link, int total) {
+		HTMLNode pager = new HTMLNode("div");
+		int first = Math.min(link.offset, total);
+		int last = (link.limit <= 0) ? total : Math.min(link.offset + link.limit, total);
+		pager.addChild("#", "Entries " + (total == 0 ? 0 : first + 1) + "-" + last + " of " + total + "\u00a0");
+		if (link.limit > 0 && first > 0) {
+			pager.addChild(link.page(0, "[first]"));
+			pager.addChild("#", "\u00a0");
+			pager.addChild(link.page(Math.max(0, first - link.limit), "[previous]"));
+			pager.addChild("#", "\u00a0");
+		}
+		if (link.limit > 0 && last < total) {
+			pager.addChild(link.page(last, "[next]"));
+			pager.addChild("#", "\u00a0");
+			pager.addChild(link.page(((total - 1) / link.limit) * link.limit, "[last]"));
+		}
+		return pager;
+	}
+
+	/**
+	 * Builds the links to other views of the same listing.
+	 */
+	private static class ListingLink {
+
+		final String uri;
+		final boolean zip;
+		final boolean tar;
+		final boolean deep;
+		final boolean ml;
+		final Sort sort;
+		final int offset;
+		final int limit;
+
+		ListingLink(String uri2, boolean zip2, boolean tar2, boolean deep2, boolean ml2, Sort sort2, int offset2, int limit2) {
+			uri = uri2;
+			zip = zip2;
+			tar = tar2;
+			deep = deep2;
+			ml = ml2;
+			sort = sort2;
+			offset = offset2;
+			limit = limit2;
+		}
+
+		HTMLNode sortedBy(Sort newSort, String title) {
+			if (newSort == sort) {
+				return new HTMLNode("span", "title", "sorted by this column", title);
+			}
+			return new HTMLNode("a", new String[] { "href", "title" }, new String[] { url(newSort, 0), "sort by this column" }, title);
+		}
+
+		HTMLNode page(int newOffset, String title) {
+			return new HTMLNode("a", "href", url(sort, newOffset), title);
+		}
+
+		private String url(Sort newSort, int newOffset) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(KeyUtilsPlugin.PLUGIN_URI).append("/Site/?");
+			sb.append(Globals.PARAM_MFTYPE).append('=').append(zip ? Globals.MFTYPE_ZIP : (tar ? Globals.MFTYPE_TAR : Globals.MFTYPE_SIMPLE));
+			sb.append('&').append(Globals.PARAM_URI).append('=').append(URLEncoder.encode(uri, false));
+			sb.append('&').append(Globals.PARAM_RECURSIVE).append('=').append(deep ? "checked" : "");
+			sb.append('&').append(Globals.PARAM_MULTILEVEL).append('=').append(ml ? "checked" : "");
+			if (newSort != Sort.NONE) {
+				sb.append('&').append(Globals.PARAM_SORT).append('=').append(newSort.toParam());
+			}
+			sb.append('&').append(Globals.PARAM_OFFSET).append('=').append(newOffset);
+			sb.append('&').append(Globals.PARAM_LIMIT).append('=').append(limit);
+			return sb.toString();
+		}
 	}
 
-	private void parseMetadataItem(HTMLNode htmlTable, String name, Metadata md, String prefix, String furi, List<String> errors, boolean deep, int nestedLevel, int subLevel) {
+	/**
+	 * Collects the walked documents into a listing and passes the rows of the
+	 * requested page on to the client while walking, if there is one.
+	 */
+	private class ListingCollector {
+
+		private final ManifestListing listing;
+		private final RowSink live;
+		private final String furi;
+		private final ARCHIVE_TYPE container;
+		private final int offset;
+		private final int limit;
+
+		ListingCollector(ManifestListing listing2, RowSink live2, String furi2, ARCHIVE_TYPE container2, int offset2, int limit2) {
+			listing = listing2;
+			live = live2;
+			furi = furi2;
+			container = container2;
+			offset = offset2;
+			limit = limit2;
+		}
+
+		void add(String prefix, String name, Metadata md, int nestedLevel, int subLevel) {
+			int row = listing.size();
+			listing.add(prefix, name, md, nestedLevel, subLevel);
+			addLive(row);
+		}
+
+		void addError(String message) {
+			int row = listing.size();
+			listing.addError(message);
+			addLive(row);
+		}
+
+		private void addLive(int row) {
+			if (live != null && row >= offset && (limit <= 0 || row - offset < limit)) {
+				live.addRow(makeRow(listing.getIndex(), row, furi, container));
+			}
+		}
 
-		String fname = prefix + name;
+		boolean isClosed() {
+			return live != null && live.isClosed();
+		}
+	}
 
-		HTMLNode htmlTableRow = htmlTable.addChild("tr");
-		htmlTableRow.addChild(makeNestedDeepCell(nestedLevel, subLevel));
-		htmlTableRow.addChild(makeTypeCell(md));
+	private ManifestListing getListing(String listingKey) {
+		synchronized (listings) {
+			return listings.get(listingKey);
+		}
+	}
+
+	private void putListing(String listingKey, ManifestListing listing) {
+		synchronized (listings) {
+			listings.put(listingKey, listing);
+		}
+	}
+
+	/**
+	 * Walks the manifest, one listing entry per table row. In deep mode the
+	 * sub metadata is taken from the prefetcher.
+	 */
+	private void parseMetadataItem(ListingCollector htmlTable, String name, Metadata md, String prefix, String furi, List<String> errors, boolean deep, Prefetcher prefetcher, int nestedLevel, int subLevel) {
+
+		if (htmlTable.isClosed()) {
+			// client is gone, do not waste any further fetches
+			return;
+		}
+
+		htmlTable.add(prefix, name, md, nestedLevel, subLevel);
 
 		// the clear & easy first
 		if (md.isSimpleManifest()) {
@@ -315,184 +788,275 @@ public class SiteExplorerToadlet extends WebInterfaceToadlet {
 			HashMap<String, Metadata> docs = md.getDocuments();
 			Metadata defaultDoc = md.getDefaultDocument();
 
-			htmlTableRow.addChild(makeNameCell(prefix, name));
-			htmlTableRow.addChild(makeCell("(" + Integer.toString(docs.size())+" Items)"));
-			htmlTableRow.addChild(makeEmptyCell());
-			htmlTableRow.addChild(makeEmptyCell());
-
 			if (defaultDoc != null) {
-				parseMetadataItem(htmlTable, "/", defaultDoc, prefix+name, furi, errors, deep, nestedLevel, subLevel+1);
+				parseMetadataItem(htmlTable, "/", defaultDoc, prefix+name, furi, errors, deep, prefetcher, nestedLevel, subLevel+1);
 			}
 
 			for (Entry<String, Metadata> entry: docs.entrySet()) {
-				parseMetadataItem(htmlTable, entry.getKey(), entry.getValue(), prefix+name+'/', furi, errors, deep, nestedLevel, subLevel+1);
+				parseMetadataItem(htmlTable, entry.getKey(), entry.getValue(), prefix+name+'/', furi, errors, deep, prefetcher, nestedLevel, subLevel+1);
 			}
 			return;
 		}
 
-		if (md.isArchiveInternalRedirect()) {
+		// the row for the item itself is written, now look inside
+		if (deep && KeyExplorerUtils.hasSubMetadata(md)) {
+			Exception err;
+			try {
+				Metadata subMd = prefetcher.await(md);
+				parseMetadataItem(htmlTable, "", subMd, prefix+name, furi, errors, deep, prefetcher, nestedLevel+1, -1);
+				return;
+			} catch (MetadataParseException e) {
+				err = e;
+			} catch (IOException e) {
+				err = e;
+			} catch (FetchException e) {
+				err = e;
+			}
+			htmlTable.addError(err.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * @return the type of the container listed, null for a plain manifest
+	 */
+	private static ARCHIVE_TYPE containerType(boolean zip, boolean tar) {
+		return zip ? ARCHIVE_TYPE.ZIP : (tar ? ARCHIVE_TYPE.TAR : null);
+	}
+
+	private static String extractLink(String furi, ARCHIVE_TYPE container, String name) {
+		String mftype = (container == ARCHIVE_TYPE.ZIP) ? Globals.MFTYPE_ZIP : Globals.MFTYPE_TAR;
+		return KeyUtilsPlugin.PLUGIN_URI + "/Download/?action=extract&" + Globals.PARAM_MFTYPE + '=' + mftype + '&' + Globals.PARAM_URI + '=' + URLEncoder.encode(furi, false) + '&' + Globals.PARAM_FILENAME + '=' + URLEncoder.encode(name, false);
+	}
+
+	/**
+	 * @param container the type of the container furi points to, null if
+	 *  it is not a container. Entries of a container get an extract link.
+	 */
+	private HTMLNode makeRow(ManifestIndex index, int i, String furi, ARCHIVE_TYPE container) {
+		ManifestIndex.Type type = index.getType(i);
+		if (type == ManifestIndex.Type.ERROR) {
+			return makeErrorRow(index.getText(i));
+		}
+
+		String fname = index.getPath(i);
+		int nestedLevel = index.getNestedLevel(i);
+
+		HTMLNode htmlTableRow = new HTMLNode("tr");
+		htmlTableRow.addChild(makeNestedDeepCell(nestedLevel, index.getSubLevel(i)));
+		htmlTableRow.addChild(makeTypeCell(index, i));
+
+		switch (type) {
+		case SMF:
+			htmlTableRow.addChild(makeNameCell(index, i));
+			htmlTableRow.addChild(makeCell("(" + Integer.toString(index.getDocumentCount(i))+" Items)"));
+			htmlTableRow.addChild(makeEmptyCell());
+			htmlTableRow.addChild(makeEmptyCell());
+			return htmlTableRow;
+
+		case AIR: {
 			HTMLNode cell = htmlTableRow.addChild("td");
 			cell.addChild(new HTMLNode("a", "href", "/" + furi + fname, fname));
 			htmlTableRow.addChild(makeEmptyCell());
-			htmlTableRow.addChild(makeMimeCell(md));
-			htmlTableRow.addChild(makeCell(md.getArchiveInternalName()));
-			return;
+			htmlTableRow.addChild(makeMimeCell(index, i));
+			String internalName = index.getText(i);
+			if (container != null && nestedLevel == 0) {
+				// the entry is in the listed container itself, not in one further down
+				HTMLNode targetCell = makeCell(internalName);
+				targetCell.addChild("#", "\u00a0");
+				targetCell.addChild(new HTMLNode("a", "href", extractLink(furi, container, internalName), "extract"));
+				htmlTableRow.addChild(targetCell);
+			} else {
+				htmlTableRow.addChild(makeCell(internalName));
+			}
+			return htmlTableRow;
 		}
 
-		if (md.isSymbolicShortlink()) {
+		case SYS: {
 			HTMLNode cell = htmlTableRow.addChild("td");
 			cell.addChild(new HTMLNode("a", "href", "/" + furi + fname, fname));
 			htmlTableRow.addChild(makeEmptyCell());
-			htmlTableRow.addChild(makeMimeCell(md));
-			htmlTableRow.addChild(makeCell("->"+md.getSymbolicShortlinkTargetName()));
-			return;
+			htmlTableRow.addChild(makeMimeCell(index, i));
+			htmlTableRow.addChild(makeCell("->"+index.getText(i)));
+			return htmlTableRow;
 		}
 
-		if (md.isMultiLevelMetadata()) {
+		case MLM: {
 			HTMLNode cell = htmlTableRow.addChild("td");
 			cell.addChild(new HTMLNode("a", "href", "/" + furi + fname, fname));
-			htmlTableRow.addChild(makeSizeCell(md));
-			htmlTableRow.addChild(makeMimeCell(md));
-			if (md.isSingleFileRedirect()) {
-				htmlTableRow.addChild(makeCell(new HTMLNode("a", "href", KeyUtilsPlugin.PLUGIN_URI + "/?key=" + md.getSingleTarget().toString(false, false), md.getSingleTarget().toString(false, false))));
+			htmlTableRow.addChild(makeSizeCell(index, i));
+			htmlTableRow.addChild(makeMimeCell(index, i));
+			String target = singleTarget(index, i);
+			if (target != null) {
+				htmlTableRow.addChild(makeCell(new HTMLNode("a", "href", KeyUtilsPlugin.PLUGIN_URI + "/?key=" + target, target)));
 			} else {
-				htmlTableRow.addChild(makeTargetCell(md, furi + fname));
-			}
-			if (deep) {
-				Metadata subMd;
-				Exception err;
-				try {
-					if (md.isSingleFileRedirect()) {
-						FreenetURI mlUri = md.getSingleTarget();
-						subMd = KeyExplorerUtils.simpleManifestGet(pluginContext.pluginRespirator, mlUri);
-					} else {
-						subMd = KeyExplorerUtils.splitManifestGet(pluginContext.pluginRespirator, md);
-					}
-					parseMetadataItem(htmlTable, "", subMd, prefix+name, furi, errors, deep, nestedLevel+1, -1);
-					return;
-				} catch (MetadataParseException e) {
-					err = e;
-				} catch (IOException e) {
-					err = e;
-				} catch (FetchException e) {
-					err = e;
-				}
-				htmlTable.addChild(makeErrorRow(err));
+				htmlTableRow.addChild(makeTargetCell(index, i, furi + fname));
 			}
-			return;
+			return htmlTableRow;
 		}
 
-		if (md.isSimpleRedirect()) {
+		case SRE: {
 			HTMLNode cell = htmlTableRow.addChild("td");
 			cell.addChild(new HTMLNode("a", "href", "/" + furi + fname, fname));
-			htmlTableRow.addChild(makeSizeCell(md));
-			htmlTableRow.addChild(makeMimeCell(md));
-			if (md.isSingleFileRedirect())
-				htmlTableRow.addChild(makeTargetCell(md, furi + fname, new HTMLNode("a", "href", KeyUtilsPlugin.PLUGIN_URI + "/?key=" + md.getSingleTarget().toString(false, false), md.getSingleTarget().toString(false, false))));
+			htmlTableRow.addChild(makeSizeCell(index, i));
+			htmlTableRow.addChild(makeMimeCell(index, i));
+			String target = singleTarget(index, i);
+			if (target != null)
+				htmlTableRow.addChild(makeTargetCell(index, i, furi + fname, new HTMLNode("a", "href", KeyUtilsPlugin.PLUGIN_URI + "/?key=" + target, target)));
 			else
-				htmlTableRow.addChild(makeTargetCell(md, furi + fname));
-
-			// the row for the item itself is written, now look inside for multi level md
-			if (deep && md.isNoMimeEnabled() && md.isSingleFileRedirect()) {
-				// looks like possible ml
-				FreenetURI mlUri = md.getSingleTarget();
-				// is control document?
-				if ((mlUri.getExtra()[2] & 0x02) != 0) {
-					// control doc, look inside for ML
-					Exception err;
-					try {
-						Metadata subMd = KeyExplorerUtils.simpleManifestGet(pluginContext.pluginRespirator, mlUri);
-						if (subMd.isMultiLevelMetadata()) {
-							// really multilevel, fetch it
-							subMd = KeyExplorerUtils.splitManifestGet(pluginContext.pluginRespirator, subMd);
-						}
-						parseMetadataItem(htmlTable, "", subMd, prefix+name, furi, errors, deep, nestedLevel+1, -1);
-						return;
-					} catch (MetadataParseException e) {
-						err = e;
-					} catch (IOException e) {
-						err = e;
-					} catch (FetchException e) {
-						err = e;
-					}
-					htmlTable.addChild(makeErrorRow(err));
-				}
+				htmlTableRow.addChild(makeTargetCell(index, i, furi + fname));
+			return htmlTableRow;
+		}
+
+		case AMR:
+			htmlTableRow.addChild(makeNameCell(index, i));
+			htmlTableRow.addChild(makeSizeCell(index, i));
+			htmlTableRow.addChild(makeMimeCell(index, i));
+			htmlTableRow.addChild(makeCell(index.getText(i)));
+			return htmlTableRow;
+
+		case ARE: {
+			htmlTableRow.addChild(makeNameCell(index, i));
+			htmlTableRow.addChild(makeSizeCell(index, i));
+			htmlTableRow.addChild(makeMimeCell(index, i));
+
+			String containerTarget = singleTarget(index, i);
+			if (containerTarget != null) {
+				htmlTableRow.addChild(makeCell(new HTMLNode("a", "href", KeyUtilsPlugin.PLUGIN_URI + "/?mftype=" + index.getText(i) + "manifest&key=" + containerTarget, containerTarget)));
+			} else {
+				htmlTableRow.addChild(makeEmptyCell());
 			}
-			return;
+			return htmlTableRow;
 		}
 
-		if (md.isArchiveMetadataRedirect()) {
-			htmlTableRow.addChild(makeNameCell(prefix, name));
-			htmlTableRow.addChild(makeSizeCell(md));
-			htmlTableRow.addChild(makeMimeCell(md));
-			htmlTableRow.addChild(makeCell(md.getArchiveInternalName()));
+		default:
+			// in theory this is 'unreachable code'
+			htmlTableRow.addChild(makeNameCell(index, i));
+			htmlTableRow.addChild(makeSizeCell(index, i));
+			htmlTableRow.addChild(makeMimeCell(index, i));
+			htmlTableRow.addChild(makeCell("(Unknown dokument type)"));
+			return htmlTableRow;
+		}
+	}
 
-			if (deep) {
-				//grab data;
-				FreenetURI u;
-				Metadata metadata;
-				Exception err;
-				try {
-					u = new FreenetURI(furi);
-					metadata = KeyExplorerUtils.tarManifestGet(pluginContext.pluginRespirator, u, md.getArchiveInternalName());
-					//parse into
-					parseMetadataItem(htmlTable, "", metadata, prefix+name, furi, errors, deep, nestedLevel+1, -1);
-					return;
-				} catch (MalformedURLException e) {
-					err = e;
-				} catch (FetchException e) {
-					err = e;
-				} catch (MetadataParseException e) {
-					err = e;
-				} catch (IOException e) {
-					err = e;
-				}
-				htmlTable.addChild(makeErrorRow(err));
-			}
-			return;
+	/**
+	 * @return the target of a single file redirect as string, null if the
+	 *  document is none
+	 */
+	private static String singleTarget(ManifestIndex index, int i) {
+		if (!index.hasFlag(i, ManifestIndex.FLAG_SINGLE_FILE) || !index.hasTarget(i)) {
+			return null;
 		}
+		try {
+			return index.getTarget(i).toString(false, false);
+		} catch (MalformedURLException e) {
+			// it was a valid key when it was added
+			Logger.error(SiteExplorerToadlet.class, "Stored target is not a valid key", e);
+			return null;
+		}
+	}
 
-		if (md.isArchiveManifest()) {
-			htmlTableRow.addChild(makeNameCell(prefix, name));
-			htmlTableRow.addChild(makeSizeCell(md));
-			htmlTableRow.addChild(makeMimeCell(md));
+	/**
+	 * Fetches the sub metadata of one item, see {@link KeyExplorerUtils#hasSubMetadata(Metadata)}.
+	 */
+	private class SubMetadataJob implements FetchQueue.Job<Metadata> {
 
-			if (md.isSingleFileRedirect()) {
-				String containerTarget = md.getSingleTarget().toString(false, false);
-				htmlTableRow.addChild(makeCell(new HTMLNode("a", "href", KeyUtilsPlugin.PLUGIN_URI + "/?mftype=" + md.getArchiveType().name() + "manifest&key=" + containerTarget, containerTarget)));
-			} else {
-				htmlTableRow.addChild(makeEmptyCell());
+		private final Metadata md;
+		private final String furi;
+
+		SubMetadataJob(Metadata md2, String furi2) {
+			md = md2;
+			furi = furi2;
+		}
+
+		@Override
+		public void start(final FetchCallback<Metadata> cb) {
+			FreenetURI u;
+			try {
+				u = new FreenetURI(furi);
+			} catch (MalformedURLException e) {
+				cb.onFailure(new FetchException(FetchExceptionMode.INVALID_URI, e));
+				return;
 			}
-			if (deep) {
-				Metadata subMd;
-				Exception err;
-				// TODO turn "smash with stones" style into "rocket science"
-				if (md.getArchiveType() == ARCHIVE_TYPE.TAR) {
-					try {
-						if (md.isSplitfile())
-							subMd = KeyExplorerUtils.tarManifestGet(pluginContext.pluginRespirator, md, ".metadata");
-						else
-							subMd = KeyExplorerUtils.tarManifestGet(pluginContext.pluginRespirator, md.getSingleTarget(), ".metadata");
-						parseMetadataItem(htmlTable, "", subMd, prefix+name, furi, errors, deep, nestedLevel+1, -1);
-						return;
-					} catch (FetchException e) {
-						err = e;
-					} catch (MetadataParseException e) {
-						err = e;
-					} catch (IOException e) {
-						err = e;
-					}
-					htmlTable.addChild(makeErrorRow(err));
+			KeyExplorerUtils.subMetadataGetAsync(pluginContext.pluginRespirator, md, u, cb);
+		}
+	}
+
+	/**
+	 * Fetches the sub metadata of a manifest tree ahead of parseMetadataItem,
+	 * limited to the configured number of parallel fetches. Fetched sub
+	 * metadata is walked for further fetches before it is handed out.
+	 */
+	private class Prefetcher {
+
+		private final String furi;
+		private final RowSink rows;
+		private final FetchQueue queue = new FetchQueue(Configuration.getDeepParallelism());
+		private final IdentityHashMap<Metadata, FetchHandle<Metadata>> fetches = new IdentityHashMap<Metadata, FetchHandle<Metadata>>();
+
+		Prefetcher(String furi2, RowSink rows2) {
+			furi = furi2;
+			rows = rows2;
+		}
+
+		void walk(Metadata md) {
+			if (md.isSimpleManifest()) {
+				Metadata defaultDoc = md.getDefaultDocument();
+				if (defaultDoc != null) {
+					walk(defaultDoc);
+				}
+				for (Metadata doc : md.getDocuments().values()) {
+					walk(doc);
 				}
+				return;
 			}
-			return;
+			if (KeyExplorerUtils.hasSubMetadata(md)) {
+				fetch(md);
+			}
+		}
+
+		Metadata await(Metadata md) throws FetchException, MetadataParseException, IOException {
+			FetchHandle<Metadata> handle;
+			synchronized (fetches) {
+				handle = fetches.get(md);
+			}
+			if (handle == null) {
+				handle = fetch(md);
+			}
+			if (!handle.isFinished()) {
+				// let the client see the rows so far while we wait
+				rows.flush();
+			}
+			return KeyExplorerUtils.waitFor(handle);
 		}
 
-		// in theory this is 'unreachable code'
-		htmlTableRow.addChild(makeNameCell(prefix, name));
-		htmlTableRow.addChild(makeSizeCell(md));
-		htmlTableRow.addChild(makeMimeCell(md));
-		htmlTableRow.addChild(makeCell("(Unknown dokument type)"));
+		void cancel() {
+			queue.cancel();
+		}
+
+		private FetchHandle<Metadata> fetch(Metadata md) {
+			final FetchHandle<Metadata> handle = new FetchHandle<Metadata>();
+			synchronized (fetches) {
+				FetchHandle<Metadata> existing = fetches.get(md);
+				if (existing != null) {
+					return existing;
+				}
+				fetches.put(md, handle);
+			}
+			queue.submit(new SubMetadataJob(md, furi), new FetchCallback<Metadata>() {
+				@Override
+				public void onSuccess(Metadata subMd) {
+					// queue the next level before anyone can look at it
+					walk(subMd);
+					handle.onSuccess(subMd);
+				}
+
+				@Override
+				public void onFailure(FetchException e) {
+					handle.onFailure(e);
+				}
+			});
+			return handle;
+		}
 	}
 
 	private HTMLNode makeErrorRow(String msg) {
@@ -525,24 +1089,21 @@ public class SiteExplorerToadlet extends WebInterfaceToadlet {
 		return makeErrorRow(e.getLocalizedMessage());
 	}
 
-	private HTMLNode makeNameCell(String prefix, String name) {
+	private HTMLNode makeNameCell(ManifestIndex index, int i) {
 		HTMLNode cell = new HTMLNode("td");
-		if ((name == null)||(name.trim().length()==0))
+		if (index.hasFlag(i, ManifestIndex.FLAG_NO_NAME))
 			cell.addChild("#", "\u00a0");
 		else
-			if ((prefix != null))
-				cell.addChild("#", prefix + name);
-			else
-				cell.addChild("#", name);
+			cell.addChild("#", index.getPath(i));
 		return cell;
 	}
 
-	private HTMLNode makeMimeCell(Metadata md) {
+	private HTMLNode makeMimeCell(ManifestIndex index, int i) {
 		HTMLNode cell = new HTMLNode("td");
-		if(md.isNoMimeEnabled())
+		if(index.hasFlag(i, ManifestIndex.FLAG_NO_MIME))
 			cell.addChild("#", "<NoMime>");
 		else
-			cell.addChild("#", md.getMIMEType());
+			cell.addChild("#", index.getMimeType(i));
 		return cell;
 	}
 
@@ -554,70 +1115,74 @@ public class SiteExplorerToadlet extends WebInterfaceToadlet {
 		return cell;
 	}
 
-	private HTMLNode makeTypeCell(Metadata md) {
+	private HTMLNode makeTypeCell(ManifestIndex index, int i) {
 		HTMLNode cell = new HTMLNode("td");
+		ManifestIndex.Type type = index.getType(i);
 
-		if (md.isArchiveInternalRedirect() || md.isArchiveMetadataRedirect() || md.isSymbolicShortlink())
+		if (type == ManifestIndex.Type.AIR || type == ManifestIndex.Type.AMR || type == ManifestIndex.Type.SYS)
 			cell.addChild("span", "title", "All data are in container/chunk", "[c]");
-		else if (md.getSingleTarget() != null)
+		else if (index.hasTarget(i))
 			cell.addChild("span", "title", "Pointer to external [meta+]data (FreenetURI)", "[e]");
-		else if (md.isSimpleManifest())
+		else if (type == ManifestIndex.Type.SMF)
 			cell.addChild("span", "title", "A subdirectory inside container/chunk", "[s]");
 		else
 			cell.addChild("span", "title", "Metadata are in container, but points to external data (usually split files)", "[m]");
 
 		cell.addChild("#", "\u00a0");
 
-		if (md.isSimpleRedirect()) {
+		switch (type) {
+		case SRE:
 			cell.addChild("span", "title", "Simple redirect", "SRE");
-		} else if (md.isSimpleManifest()) {
+			break;
+		case SMF:
 			cell.addChild("span", "title", "Simple manifest", "SMF");
-		} else if (md.isArchiveInternalRedirect()) {
+			break;
+		case AIR:
 			cell.addChild("span", "title", "Archive internal redirect", "AIR");
-		} else if (md.isArchiveMetadataRedirect()) {
+			break;
+		case AMR:
 			cell.addChild("span", "title", "Archive metadata redirect", "AMR");
-		} else if (md.isArchiveManifest()) {
+			break;
+		case ARE:
 			cell.addChild("span", "title", "Archive redirect", "ARE");
-		} else if (md.isMultiLevelMetadata()) {
+			break;
+		case MLM:
 			cell.addChild("span", "title", "Multi level metadata", "MLM");
-		} else if (md.isSymbolicShortlink()) {
+			break;
+		case SYS:
 			cell.addChild("span", "title", "Symbolic short link", "SYS");
-		} else {
+			break;
+		default:
 			cell.addChild("span", "title", "Unknown document type", "?");
+			break;
 		}
 
 		cell.addChild("#", "\u00a0");
 
-		if (md.haveFlags()) {
-			boolean isFirst = true;
+		boolean isFirst = true;
 
-			if (md.isSplitfile()) {
+		if (index.hasFlag(i, ManifestIndex.FLAG_SPLITFILE)) {
+			cell.addChild("#", "(");
+			cell.addChild("span", "title", "Split file", "SF");
+			isFirst = false;
+		}
+		if (index.hasFlag(i, ManifestIndex.FLAG_COMPRESSED)) {
+			if (isFirst) {
 				cell.addChild("#", "(");
-				cell.addChild("span", "title", "Split file", "SF");
 				isFirst = false;
 			}
-			if (md.isCompressed()) {
-				if (isFirst) {
-					cell.addChild("#", "(");
-					isFirst = false;
-				}
-				else
-					cell.addChild("#", "\u00a0");
-				cell.addChild("span", "title", "Compressed: "+md.getCompressionCodec().name, "C");
-			}
-			if (!isFirst)
-				cell.addChild("#", ")\u00a0");
+			else
+				cell.addChild("#", "\u00a0");
+			cell.addChild("span", "title", "Compressed: "+index.getCompressionCodec(i), "C");
 		}
+		if (!isFirst)
+			cell.addChild("#", ")\u00a0");
 		return cell;
 	}
 
-	private HTMLNode makeSizeCell(Metadata md) {
-		long size;
-		if (md.isCompressed())
-			size = md.uncompressedDataLength();
-		else if (md.isSplitfile())
-			size = md.dataLength();
-		else
+	private HTMLNode makeSizeCell(ManifestIndex index, int i) {
+		long size = index.getSize(i);
+		if (size < 0)
 			return makeEmptyCell();
 		return makeCell(Long.toString(size)+"\u00a0B");
 	}
@@ -628,10 +1193,10 @@ public class SiteExplorerToadlet extends WebInterfaceToadlet {
 		return cell;
 	}
 
-	private HTMLNode makeTargetCell(Metadata md, String uri, HTMLNode htmlNode) {
+	private HTMLNode makeTargetCell(ManifestIndex index, int i, String uri, HTMLNode htmlNode) {
 		HTMLNode cell = new HTMLNode("td");
 		boolean isEmpty = true;
-		if (md != null && md.isSplitfile()) {
+		if (index.hasFlag(i, ManifestIndex.FLAG_SPLITFILE)) {
 			cell.addChild("#", "[");
 			cell.addChild("a", "href", KeyUtilsPlugin.PLUGIN_URI + "/Split/?key=" + URLEncoder.encode(uri, false), "show split");
 			cell.addChild("#", "]\u00a0");
@@ -647,8 +1212,8 @@ public class SiteExplorerToadlet extends WebInterfaceToadlet {
 		return cell;
 	}
 
-	private HTMLNode makeTargetCell(Metadata md, String uri) {
-		return makeTargetCell(md, uri, null);
+	private HTMLNode makeTargetCell(ManifestIndex index, int i, String uri) {
+		return makeTargetCell(index, i, uri, null);
 	}
 
 	private String i18n(String key) {
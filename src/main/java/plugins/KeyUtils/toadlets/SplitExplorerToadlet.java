@@ -6,10 +6,18 @@ package plugins.KeyUtils.toadlets;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map.Entry;
 
+import plugins.KeyUtils.Configuration;
+import plugins.KeyUtils.KeyExplorerUtils;
 import plugins.KeyUtils.KeyUtilsPlugin;
+import plugins.KeyUtils.SegmentKeyTable;
+import plugins.KeyUtils.SplitfileProbe;
+import plugins.KeyUtils.SplitfileProbe.SegmentResult;
 
 import freenet.client.FetchContext;
 import freenet.client.FetchException;
@@ -36,6 +44,7 @@ import freenet.support.Fields;
 import freenet.support.HexUtil;
 import freenet.support.HTMLNode;
 import freenet.support.Logger;
+import freenet.support.URLEncoder;
 import freenet.support.api.HTTPRequest;
 import freenet.support.plugins.helpers1.PluginContext;
 import freenet.support.plugins.helpers1.WebInterfaceToadlet;
@@ -46,8 +55,44 @@ import freenet.support.plugins.helpers1.WebInterfaceToadlet;
  */
 public class SplitExplorerToadlet extends WebInterfaceToadlet {
 
+	/** block probes running at the same time, the rate is limited by the config */
+	private static final int PROBE_PARALLELISM = 16;
+
+	private static final String MARKER_ROWS = "rows";
+	private static final String MARKER_SUMMARY = "summary";
+
+	private static final String HEAT_NONE = "#ccc";
+	private static final String HEAT_DECODABLE = "rgb(0,160,0)";
+
+	/** memory for decoded splitfiles, the last one is kept even if bigger */
+	private static final long MAX_SPLITS_SIZE = 16 * 1024 * 1024;
+	/** rough guess of the per entry overhead (metadata, map entry) */
+	private static final int SPLIT_OVERHEAD = 4096;
+
 	private final PluginL10n _intl;
 
+	/**
+	 * A split level with its segment keys decoded.
+	 */
+	private static class DecodedSplit {
+		/** the segment keys are already grabbed, do not fetch from it */
+		final Metadata md;
+		final SegmentKeyTable keys;
+
+		DecodedSplit(Metadata md2, SegmentKeyTable keys2) {
+			md = md2;
+			keys = keys2;
+		}
+
+		long estimatedSize() {
+			return SPLIT_OVERHEAD + keys.getEstimatedSize();
+		}
+	}
+
+	/** recently decoded splitfiles by level and URI, views and probes are served from here */
+	private final LinkedHashMap<String, DecodedSplit> splits = new LinkedHashMap<String, DecodedSplit>(8, 0.75f, true);
+	private long splitsSize;
+
 	private static abstract class AbstractSnoop implements SnoopMetadata {
 		abstract Metadata getResult();
 	}
@@ -128,6 +173,15 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 //			return;
 //		}
 		
+		if (request.isParameterSet(Globals.PARAM_URI) && request.isParameterSet(Globals.PARAM_SEGMENT)) {
+			makeSegmentPage(ctx, request.getParam(Globals.PARAM_URI), request.getIntParam(Globals.PARAM_LEVEL, 0), request.getIntParam(Globals.PARAM_SEGMENT, -1));
+			return;
+		}
+		if (request.isParameterSet(Globals.PARAM_URI) && request.isParameterSet(Globals.PARAM_EXPORT)) {
+			exportKeys(ctx, request.getParam(Globals.PARAM_URI), request.getIntParam(Globals.PARAM_LEVEL, 0), request.getParam(Globals.PARAM_EXPORT));
+			return;
+		}
+
 		String key;
 		boolean ml;
 		int level;
@@ -161,6 +215,8 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 		boolean ml = request.getPartAsString(Globals.PARAM_MULTILEVEL, 128).length() > 0;
 		String mftype = request.getPartAsString(Globals.PARAM_MFTYPE, 128);
 		int level = request.getIntPart(Globals.PARAM_LEVEL, 0);
+		boolean probe = request.getPartAsString(Globals.PARAM_PROBE, 128).length() > 0;
+		boolean local = request.getPartAsString(Globals.PARAM_LOCAL, 128).length() > 0;
 
 		FreenetURI furi = null;
 		if (key.trim().length() == 0) {
@@ -178,7 +234,7 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 			makeMainPage(ctx, errors);
 			return;
 		}
-		makeSplitPage(ctx, errors, furi, level);
+		makeSplitPage(ctx, errors, furi, level, probe, local);
 	}
 
 	private void makeMainPage(ToadletContext ctx, List<String> errors) throws ToadletContextClosedException, IOException {
@@ -204,7 +260,7 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 			errors.add("MalformedURL: " + key);
 		}
 
-		HTMLNode uriBox = createUriBox(pluginContext, ((furi == null) ? null : furi.toString(false, false)), level);
+		HTMLNode uriBox = createUriBox(pluginContext, ((furi == null) ? null : furi.toString(false, false)), level, false, false);
 
 		if (errors.size() > 0) {
 			contentNode.addChild(createErrorBox(errors, path(), retryUri, null));
@@ -216,30 +272,22 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 		writeHTMLReply(ctx, 200, "OK", outer.generate());
 	}
 
-	private void makeSplitPage(ToadletContext ctx, List<String> errors, FreenetURI furi, int level) throws ToadletContextClosedException, IOException {
+	private void makeSplitPage(ToadletContext ctx, List<String> errors, FreenetURI furi, int level, boolean probe, boolean local) throws ToadletContextClosedException, IOException {
 		PageNode page = pluginContext.pageMaker.getPageNode(i18n("SplitExplorer.PageTitle"), ctx);
 		HTMLNode outer = page.outer;
 		HTMLNode contentNode = page.content;
 
 		String extraParams = "";
 		FreenetURI retryUri = null;
-		Metadata md = null;
-		if (level < 1) {
-			try {
-				md = splitGet(pluginContext.pluginRespirator, furi, (level < 0));
-			} catch (FetchException e) {
-				Logger.error(this, "debug", e);
-				errors.add(e.getLocalizedMessage());
-			}
-		} else {
-			try {
-				md = splitGet(pluginContext.pluginRespirator, furi, level);
-			} catch (FetchException e) {
-				Logger.error(this, "debug", e);
-				errors.add(e.getLocalizedMessage());
-			}
+		DecodedSplit split = null;
+		try {
+			// a submitted form fetches mutable keys again
+			split = getSplit(furi, level, !KeyExplorerUtils.isImmutable(furi));
+		} catch (FetchException e) {
+			Logger.error(this, "debug", e);
+			errors.add(e.getLocalizedMessage());
 		}
-		HTMLNode uriBox = createUriBox(pluginContext, ((furi == null) ? null : furi.toString(false, false)), level);
+		HTMLNode uriBox = createUriBox(pluginContext, ((furi == null) ? null : furi.toString(false, false)), level, probe, local);
 
 		if (errors.size() > 0) {
 			contentNode.addChild(createErrorBox(errors, path(), retryUri, null));
@@ -248,12 +296,21 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 			return;
 		}
 
+		if (local) {
+			makeLocalPage(ctx, page, uriBox, split.keys, furi.toString(false, false));
+			return;
+		}
+		if (probe) {
+			makeProbePage(ctx, page, uriBox, split.keys, furi.toString(false, false));
+			return;
+		}
+
 		HTMLNode splitBox;
-		if (md.getParsedVersion() == 0) {
-			splitBox = createSplitBoxV1(pluginContext, md, furi.toString(false, false));
+		if (split.md.getParsedVersion() == 0) {
+			splitBox = createSplitBoxV1(pluginContext, split, furi.toString(false, false), level);
 		} else {
 			// version 1+
-			splitBox = createSplitBoxV1(pluginContext, md, furi.toString(false, false));
+			splitBox = createSplitBoxV1(pluginContext, split, furi.toString(false, false), level);
 		}
 		contentNode.addChild(uriBox);
 		contentNode.addChild(splitBox);
@@ -261,6 +318,223 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 		writeHTMLReply(ctx, 200, "OK", outer.generate());
 	}
 
+	/**
+	 * Show the keys of one segment, linked from the segment list.
+	 */
+	private void makeSegmentPage(ToadletContext ctx, String key, int level, int index) throws ToadletContextClosedException, IOException {
+		PageNode page = pluginContext.pageMaker.getPageNode(i18n("SplitExplorer.PageTitle"), ctx);
+		HTMLNode contentNode = page.content;
+
+		List<String> errors = new LinkedList<String>();
+		FreenetURI furi = null;
+		DecodedSplit split = null;
+		try {
+			furi = new FreenetURI(key);
+			split = getSplit(furi, level, false);
+			if (index < 0 || index >= split.keys.getSegmentCount()) {
+				errors.add("No such segment: " + index);
+			}
+		} catch (MalformedURLException e) {
+			errors.add("MalformedURL: " + key);
+		} catch (FetchException e) {
+			Logger.error(this, "debug", e);
+			errors.add(e.getLocalizedMessage());
+		}
+		contentNode.addChild(createUriBox(pluginContext, ((furi == null) ? null : furi.toString(false, false)), level, false, false));
+		if (errors.size() > 0) {
+			contentNode.addChild(createErrorBox(errors, path(), null, null));
+			writeHTMLReply(ctx, 200, "OK", page.outer.generate());
+			return;
+		}
+
+		String uri = furi.toString(false, false);
+		InfoboxNode box = pluginContext.pageMaker.getInfobox("Split file: " + uri);
+		HTMLNode navigation = box.content.addChild("div");
+		if (index > 0) {
+			navigation.addChild("a", "href", segmentLink(uri, level, index - 1), "\u00ab Segment #" + (index - 1));
+			navigation.addChild("#", "\u00a0\u00a0");
+		}
+		navigation.addChild("#", "Segment #" + index + " (" + split.keys.getSegmentCount() + " segments, counted from #0)");
+		if (index + 1 < split.keys.getSegmentCount()) {
+			navigation.addChild("#", "\u00a0\u00a0");
+			navigation.addChild("a", "href", segmentLink(uri, level, index + 1), "Segment #" + (index + 1) + " \u00bb");
+		}
+		box.content.addChild(createSegmentedBoxV1(pluginContext, split.keys, index));
+		contentNode.addChild(box.outer);
+		contentNode.addChild(Utils.makeDonateFooter(_intl));
+		writeHTMLReply(ctx, 200, "OK", page.outer.generate());
+	}
+
+	private String segmentLink(String uri, int level, int index) {
+		return path() + "?" + Globals.PARAM_URI + "=" + URLEncoder.encode(uri, false) + "&" + Globals.PARAM_LEVEL + "=" + level + "&" + Globals.PARAM_SEGMENT + "=" + index;
+	}
+
+	/**
+	 * Send all keys of a splitfile as a file, errors go to the main page.
+	 */
+	private void exportKeys(ToadletContext ctx, String key, int level, String formatParam) throws ToadletContextClosedException, IOException {
+		List<String> errors = new LinkedList<String>();
+		SegmentKeyExport.Format format = SegmentKeyExport.Format.fromParam(formatParam);
+		if (format == null) {
+			errors.add("Unknown export format: " + formatParam);
+			makeMainPage(ctx, errors, key, level);
+			return;
+		}
+		FreenetURI furi;
+		DecodedSplit split;
+		try {
+			furi = new FreenetURI(key);
+			split = getSplit(furi, level, false);
+		} catch (MalformedURLException e) {
+			errors.add("MalformedURL: " + key);
+			makeMainPage(ctx, errors, key, level);
+			return;
+		} catch (FetchException e) {
+			Logger.error(this, "debug", e);
+			errors.add(e.getLocalizedMessage());
+			makeMainPage(ctx, errors, key, level);
+			return;
+		}
+		new SegmentKeyExport(ctx, format).write(split.keys, furi.toString(false, false), level);
+	}
+
+	private String exportLink(String uri, int level, SegmentKeyExport.Format format) {
+		return path() + "?" + Globals.PARAM_URI + "=" + URLEncoder.encode(uri, false) + "&" + Globals.PARAM_LEVEL + "=" + level + "&" + Globals.PARAM_EXPORT + "=" + format.toParam();
+	}
+
+	private void makeLocalPage(ToadletContext ctx, PageNode page, HTMLNode uriBox, SegmentKeyTable keys, String uri) throws ToadletContextClosedException, IOException {
+		HTMLNode contentNode = page.content;
+		contentNode.addChild(uriBox);
+
+		SegmentResult[] results = SplitfileProbe.checkLocal(pluginContext.pluginRespirator.getNode(), keys);
+		int blocks = 0;
+		int found = 0;
+		int decodable = 0;
+		for (SegmentResult result : results) {
+			blocks += result.getDataBlocks() + result.getCheckBlocks();
+			found += result.getDataFound() + result.getCheckFound();
+			if (result.isDecodable()) {
+				decodable++;
+			}
+		}
+
+		InfoboxNode box = pluginContext.pageMaker.getInfobox("Local availability: " + uri);
+		HTMLNode boxContent = box.content;
+		boxContent.addChild("#", "The local node holds " + found + " of " + blocks + " blocks, " + decodable + " of " + results.length + " segments can be decoded without further requests.");
+		boxContent.addChild("br");
+		boxContent.addChild("#", "One square per segment: ");
+		addHeatCell(boxContent, HEAT_NONE, "no blocks");
+		boxContent.addChild("#", " none held, ");
+		addHeatCell(boxContent, heatColor(0.5f), "half");
+		boxContent.addChild("#", " some held, ");
+		addHeatCell(boxContent, HEAT_DECODABLE, "decodable");
+		boxContent.addChild("#", " decodable.");
+		HTMLNode map = boxContent.addChild("div", "style", "margin-top: 0.5em; line-height: 0;");
+		for (int i = 0; i < results.length; i++) {
+			SegmentResult result = results[i];
+			String color;
+			if (result.isDecodable()) {
+				color = HEAT_DECODABLE;
+			} else if (result.getDataFound() + result.getCheckFound() == 0) {
+				color = HEAT_NONE;
+			} else {
+				color = heatColor((float) (result.getDataFound() + result.getCheckFound()) / result.getDataBlocks());
+			}
+			addHeatCell(map, color, "Segment #" + i + ": data " + result.getDataFound() + "/" + result.getDataBlocks() + ", check " + result.getCheckFound() + "/" + result.getCheckBlocks() + ", needed " + result.getDataBlocks());
+		}
+		contentNode.addChild(box.outer);
+		contentNode.addChild(Utils.makeDonateFooter(_intl));
+		writeHTMLReply(ctx, 200, "OK", page.outer.generate());
+	}
+
+	private static void addHeatCell(HTMLNode parent, String color, String title) {
+		parent.addChild("span", new String[] { "title", "style" }, new String[] { title, "display: inline-block; width: 10px; height: 10px; margin: 1px; background-color: " + color + ";" });
+	}
+
+	/**
+	 * @param fraction found blocks per needed block, below 1
+	 * @return a colour from red (nothing) to yellow (almost decodable)
+	 */
+	private static String heatColor(float fraction) {
+		int green = Math.round(Math.max(0f, Math.min(1f, fraction)) * 200);
+		return "rgb(220," + green + ",0)";
+	}
+
+	private void makeProbePage(ToadletContext ctx, PageNode page, HTMLNode uriBox, SegmentKeyTable keys, String uri) throws ToadletContextClosedException, IOException {
+		HTMLNode contentNode = page.content;
+		contentNode.addChild(uriBox);
+
+		final int segments = keys.getSegmentCount();
+		int blocks = keys.getBlockCount();
+		int rate = Configuration.getProbeRate();
+		InfoboxNode box = pluginContext.pageMaker.getInfobox("Block availability: " + uri);
+		HTMLNode boxContent = box.content;
+		boxContent.addChild("#", "Probing " + blocks + " blocks in " + segments + " segments, at most " + rate + " blocks per second. A block counts as found if it can be fetched now.");
+		HTMLNode contentTable = boxContent.addChild("table");
+		HTMLNode tableRow = contentTable.addChild("thead").addChild("tr");
+		tableRow.addChild("th", "Segment");
+		tableRow.addChild("th", "Data found");
+		tableRow.addChild("th", "Check found");
+		tableRow.addChild("th", "Needed");
+		tableRow.addChild("th", "Status");
+		tableRow.addChild("th", "Errors");
+		contentTable.addChild(StreamingPage.marker(MARKER_ROWS));
+		boxContent.addChild(StreamingPage.marker(MARKER_SUMMARY));
+		contentNode.addChild(box.outer);
+		contentNode.addChild(Utils.makeDonateFooter(_intl));
+
+		final StreamingPage streamingPage = new StreamingPage(ctx, page.outer.generate(), MARKER_ROWS, MARKER_SUMMARY);
+		final int[] totals = new int[3];
+		streamingPage.start();
+		new SplitfileProbe(pluginContext.pluginRespirator, keys, PROBE_PARALLELISM, rate).run(new SplitfileProbe.Listener() {
+			@Override
+			public void onSegment(int index, SegmentResult result) {
+				totals[0]++;
+				if (!result.isDecodable()) {
+					totals[1]++;
+				}
+				totals[2] += result.getFailed();
+				streamingPage.addRow(makeProbeRow(index, result));
+				// let the client see the progress, a segment takes a while
+				streamingPage.flush();
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return streamingPage.isClosed();
+			}
+		});
+		streamingPage.nextPart();
+		HTMLNode summary = new HTMLNode("p");
+		if (totals[0] < segments) {
+			summary.addChild("#", "Probe stopped after " + totals[0] + " of " + segments + " segments.");
+		} else if (totals[1] == 0) {
+			summary.addChild("#", "All " + segments + " segments can be decoded.");
+		} else {
+			summary.addChild("b", totals[1] + " of " + segments + " segments can not be decoded with the blocks found.");
+		}
+		if (totals[2] > 0) {
+			summary.addChild("#", " " + totals[2] + " blocks could not be probed, try again.");
+		}
+		streamingPage.write(summary);
+		streamingPage.nextPart();
+	}
+
+	private HTMLNode makeProbeRow(int index, SegmentResult result) {
+		HTMLNode row = new HTMLNode("tr");
+		row.addChild("td", Integer.toString(index));
+		row.addChild("td", result.getDataFound() + "/" + result.getDataBlocks());
+		row.addChild("td", result.getCheckFound() + "/" + result.getCheckBlocks());
+		row.addChild("td", Integer.toString(result.getDataBlocks()));
+		if (result.isDecodable()) {
+			row.addChild("td", "OK");
+		} else {
+			row.addChild("td").addChild("b", result.getMissing() + " missing");
+		}
+		row.addChild("td", (result.getFailed() == 0) ? "\u00a0" : Integer.toString(result.getFailed()));
+		return row;
+	}
+
 	private HTMLNode createSplitBoxV0(PluginContext pCtx, Metadata md, String uri) {
 		InfoboxNode box = pCtx.pageMaker.getInfobox("Split file: "+uri);
 		HTMLNode browseBox = box.outer;
@@ -331,7 +605,8 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 		return browseBox;
 	}
 
-	private HTMLNode createSplitBoxV1(PluginContext pCtx, Metadata md, String uri) {
+	private HTMLNode createSplitBoxV1(PluginContext pCtx, DecodedSplit split, String uri, int level) {
+		Metadata md = split.md;
 		InfoboxNode box = pCtx.pageMaker.getInfobox("Split file: "+uri);
 		HTMLNode browseBox = box.outer;
 		HTMLNode browseContent = box.content;
@@ -408,23 +683,9 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 
 		browseContent.addChild(infoBox);
 
-		SplitFileSegmentKeys[] segments;
-		try {
-			segments = md .grabSegmentKeys();
-		} catch (FetchException e) {
-			Logger.error(this, "Internal failures: "+e.getMessage(), e);
-			infoContent.addChild("#", "Error: Internal failure while decoding data. Try again (refresh the page).");
-			return browseBox;
-		}
-
-		if (segments == null) {
-			infoContent.addChild("br");
-			Logger.error(this, "Segements is null!?", new Error("Debug"));
-			infoContent.addChild("#", "Error: Segements is null!? Should not happen!?!");
-			return browseBox;
-		}
+		SegmentKeyTable keys = split.keys;
 
-		infoContent.addChild("#", "Segment count: " + segments.length);
+		infoContent.addChild("#", "Segment count: " + keys.getSegmentCount());
 		infoContent.addChild("br");
 
 		if (type == SplitfileAlgorithm.ONION_STANDARD) {
@@ -432,45 +693,71 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 			infoContent.addChild("br");
 			infoContent.addChild("#", "Check blocks per segment: " + md.getCheckBlocksPerSegment());
 			infoContent.addChild("br");
-			for (int i=0;i<segments.length;i++) {
-				browseContent.addChild(createSegmentedBoxV1(pCtx, i, segments[i]));
-			}
+			browseContent.addChild(createSegmentListBox(pCtx, keys, uri, level));
 		} else if (type == SplitfileAlgorithm.NONREDUNDANT) {
 			infoContent.addChild("#", "Data blocks per segment: " + md.getDataBlocksPerSegment());
 			infoContent.addChild("br");
-			for (int i=0;i<segments.length;i++) {
-				browseContent.addChild(createSegmentedBoxV1(pCtx, i, segments[i]));
-			}
+			browseContent.addChild(createSegmentListBox(pCtx, keys, uri, level));
 		}
 		return browseBox;
 	}
 
-	private HTMLNode createSegmentedBoxV1(PluginContext pCtx, int index, SplitFileSegmentKeys segment) {
+	/**
+	 * One row per segment, the keys are shown on a page of their own. Huge
+	 * splitfiles have thousands of keys, too much for one page.
+	 */
+	private HTMLNode createSegmentListBox(PluginContext pCtx, SegmentKeyTable keys, String uri, int level) {
+		InfoboxNode box = pCtx.pageMaker.getInfobox("Segments: " + keys.getSegmentCount());
+		HTMLNode export = box.content.addChild("div");
+		export.addChild("#", "Export all " + keys.getBlockCount() + " keys as:\u00a0");
+		export.addChild("a", "href", exportLink(uri, level, SegmentKeyExport.Format.TEXT), "text");
+		export.addChild("#", ",\u00a0");
+		export.addChild("a", "href", exportLink(uri, level, SegmentKeyExport.Format.CSV), "CSV");
+		export.addChild("#", ",\u00a0");
+		export.addChild("a", "href", exportLink(uri, level, SegmentKeyExport.Format.JSON), "JSON");
+		HTMLNode table = box.content.addChild("table");
+		HTMLNode tableRow = table.addChild("thead").addChild("tr");
+		tableRow.addChild("th", "Segment");
+		tableRow.addChild("th", "Data blocks");
+		tableRow.addChild("th", "Check blocks");
+		tableRow.addChild("th", "Keys");
+		HTMLNode tableBody = table.addChild("tbody");
+		for (int i = 0; i < keys.getSegmentCount(); i++) {
+			HTMLNode row = tableBody.addChild("tr");
+			row.addChild("td", Integer.toString(i));
+			row.addChild("td", Integer.toString(keys.getDataBlocks(i)));
+			row.addChild("td", Integer.toString(keys.getCheckBlocks(i)));
+			row.addChild("td").addChild("a", "href", segmentLink(uri, level, i), "show");
+		}
+		return box.outer;
+	}
+
+	private HTMLNode createSegmentedBoxV1(PluginContext pCtx, SegmentKeyTable keys, int index) {
 		InfoboxNode box = pCtx.pageMaker.getInfobox("Segment #"+index);
 		HTMLNode browseBox = box.outer;
 		HTMLNode browseContent = box.content;
 
-		if (segment.dataBlocks > 0) {
-			InfoboxNode segmentInfo = pCtx.pageMaker.getInfobox("Data Blocks: "+segment.dataBlocks);
+		int dataBlocks = keys.getDataBlocks(index);
+		int checkBlocks = keys.getCheckBlocks(index);
+		if (dataBlocks > 0) {
+			InfoboxNode segmentInfo = pCtx.pageMaker.getInfobox("Data Blocks: "+dataBlocks);
 			HTMLNode segmentBox = segmentInfo.outer;
 			HTMLNode segmentContent = segmentInfo.content;
 			segmentContent.addChild("%", "<div lang=\"en\" style=\"font-family: monospace;\">\n");
-			for (int i = 0; i < segment.dataBlocks; i++) {
-				ClientCHK key = segment.getKey(i, null, false);
-				segmentContent.addChild("#", i+"\t"+key.getURI().toString(false, false));
+			for (int i = 0; i < dataBlocks; i++) {
+				segmentContent.addChild("#", i+"\t"+keys.getURI(index, i).toString(false, false));
 				segmentContent.addChild("br");
 			}
 			segmentContent.addChild("%", "\n</div>");
 			browseContent.addChild(segmentBox);
 		}
-		if (segment.checkBlocks > 0) {
-			InfoboxNode segmentInfo = pCtx.pageMaker.getInfobox("Check Blocks: "+segment.checkBlocks);
+		if (checkBlocks > 0) {
+			InfoboxNode segmentInfo = pCtx.pageMaker.getInfobox("Check Blocks: "+checkBlocks);
 			HTMLNode segmentBox = segmentInfo.outer;
 			HTMLNode segmentContent = segmentInfo.content;
 			segmentContent.addChild("%", "<div lang=\"en\" style=\"font-family: monospace;\">\n");
-			for (int i = 0; i < (segment.checkBlocks); i++) {
-				ClientCHK key = segment.getKey(i+segment.dataBlocks, null, false);
-				segmentContent.addChild("#", i+"\t"+key.getURI().toString(false, false));
+			for (int i = 0; i < checkBlocks; i++) {
+				segmentContent.addChild("#", i+"\t"+keys.getURI(index, i+dataBlocks).toString(false, false));
 				segmentContent.addChild("br");
 			}
 			segmentContent.addChild("%", "\n</div>");
@@ -480,7 +767,7 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 		return browseBox;
 	}
 
-	private HTMLNode createUriBox(PluginContext pCtx, String uri, int level) {
+	private HTMLNode createUriBox(PluginContext pCtx, String uri, int level, boolean probe, boolean local) {
 		InfoboxNode box = pCtx.pageMaker.getInfobox("Explore a split file");
 		HTMLNode browseBox = box.outer;
 		HTMLNode browseContent = box.content;
@@ -501,10 +788,79 @@ public class SplitExplorerToadlet extends WebInterfaceToadlet {
 		else
 			browseForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", Globals.PARAM_LEVEL, "2", "0" });
 		browseForm.addChild("#", "\u00a00=first, -1=last, n=jump over n split levels");
+		browseForm.addChild("br");
+		if (probe)
+			browseForm.addChild("input", new String[] { "type", "name", "value", "checked" }, new String[] { "checkbox", Globals.PARAM_PROBE, "ok", "checked" });
+		else
+			browseForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "checkbox", Globals.PARAM_PROBE, "ok" });
+		browseForm.addChild("#", "\u00a0Probe block availability (fetches every block, takes a while)");
+		browseForm.addChild("br");
+		if (local)
+			browseForm.addChild("input", new String[] { "type", "name", "value", "checked" }, new String[] { "checkbox", Globals.PARAM_LOCAL, "ok", "checked" });
+		else
+			browseForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "checkbox", Globals.PARAM_LOCAL, "ok" });
+		browseForm.addChild("#", "\u00a0Local availability only (checks the local datastore, no requests)");
 		return browseBox;
 	}
 
+	/**
+	 * Fetch a split level and decode its segment keys, or take it from the cache.
+	 * @param refresh fetch again even if cached
+	 */
+	private DecodedSplit getSplit(FreenetURI uri, int level, boolean refresh) throws FetchException {
+		String cacheKey = level + ":" + uri.toString(false, false);
+		if (!refresh) {
+			synchronized (splits) {
+				DecodedSplit split = splits.get(cacheKey);
+				if (split != null) {
+					return split;
+				}
+			}
+		}
+		Metadata md;
+		if (level < 1) {
+			md = splitGet(pluginContext.pluginRespirator, uri, (level < 0));
+		} else {
+			md = splitGet(pluginContext.pluginRespirator, uri, level);
+		}
+		if (!md.isSplitfile()) {
+			throw new FetchException(FetchExceptionMode.INVALID_METADATA, "URI does not point to a split file");
+		}
+		SplitFileSegmentKeys[] segments = md.grabSegmentKeys();
+		if (segments == null) {
+			Logger.error(this, "Segements is null!?", new Error("Debug"));
+			throw new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Segements is null!? Should not happen!?!");
+		}
+		SegmentKeyTable keys;
+		try {
+			keys = SegmentKeyTable.build(segments);
+		} catch (IllegalArgumentException e) {
+			throw new FetchException(FetchExceptionMode.INVALID_METADATA, e.getMessage());
+		}
+		DecodedSplit split = new DecodedSplit(md, keys);
+		synchronized (splits) {
+			DecodedSplit old = splits.put(cacheKey, split);
+			if (old != null) {
+				splitsSize -= old.estimatedSize();
+			}
+			splitsSize += split.estimatedSize();
+			Iterator<Entry<String, DecodedSplit>> it = splits.entrySet().iterator();
+			while (splitsSize > MAX_SPLITS_SIZE && splits.size() > 1) {
+				splitsSize -= it.next().getValue().estimatedSize();
+				it.remove();
+			}
+		}
+		return split;
+	}
+
 	private Metadata splitGet(PluginRespirator pr, FreenetURI uri, boolean last) throws FetchException {
+		if (!last) {
+			// the first split level is the top level metadata if it is a split file
+			Metadata cached = KeyExplorerUtils.getCachedMetadata(uri);
+			if (cached != null && cached.isSplitfile()) {
+				return cached;
+			}
+		}
 		AbstractSnoop snooper;
 		if (last)
 			snooper = new SnoopLast();
@@ -0,0 +1,189 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.KeyUtils.toadlets;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import freenet.clients.http.ToadletContext;
+import freenet.clients.http.ToadletContextClosedException;
+import freenet.support.HTMLNode;
+import freenet.support.Logger;
+
+/**
+ * Sends a html page while it is generated.
+ *
+ * The page frame is generated as usual, with markers (see {@link #marker(String)})
+ * where content is streamed in. The parts between the markers are written
+ * with {@link #nextPart()}, table rows or raw html in between as they come.
+ * The length is unknown in advance, so the connection is closed after the
+ * page.
+ */
+class StreamingPage implements RowSink, Appendable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** collect this much html before writing it out */
+	private static final int FLUSH_SIZE = 16 * 1024;
+
+	private final ToadletContext ctx;
+	private final String page;
+	private final String[] markers;
+	private final StringBuilder buffer = new StringBuilder(FLUSH_SIZE + 1024);
+	private int part;
+	private int position;
+	private HTMLNode pendingRow;
+	private IOException failure;
+	private ToadletContextClosedException closed;
+
+	/**
+	 * @param page the generated page frame
+	 * @param markers the markers in the order they appear in the page
+	 */
+	StreamingPage(ToadletContext ctx2, String page2, String... markers2) {
+		ctx = ctx2;
+		page = page2;
+		markers = markers2;
+	}
+
+	/**
+	 * @return a raw html node to be placed where content is streamed in later
+	 */
+	static HTMLNode marker(String name) {
+		return new HTMLNode("%", markerText(name));
+	}
+
+	private static String markerText(String name) {
+		return "<!-- KeyUtils:" + name + " -->";
+	}
+
+	/**
+	 * Send the headers and the page up to the first marker.
+	 */
+	void start() throws ToadletContextClosedException, IOException {
+		ctx.forceDisconnect();
+		ctx.sendReplyHeaders(200, "OK", null, "text/html; charset=utf-8", -1);
+		nextPart();
+	}
+
+	/**
+	 * Write the page up to the next marker, or up to the end after the last one.
+	 */
+	void nextPart() throws ToadletContextClosedException, IOException {
+		flushRow();
+		int end;
+		if (part < markers.length) {
+			String marker = markerText(markers[part]);
+			end = page.indexOf(marker, position);
+			if (end < 0) {
+				throw new IllegalStateException("Marker not found in page: " + markers[part]);
+			}
+			buffer.append(page, position, end);
+			position = end + marker.length();
+		} else {
+			buffer.append(page, position, page.length());
+			position = page.length();
+		}
+		part++;
+		flush();
+		checkFailure();
+	}
+
+	/**
+	 * Write a complete node at the current position.
+	 */
+	void write(HTMLNode node) throws ToadletContextClosedException, IOException {
+		flushRow();
+		node.generate(buffer);
+		maybeFlush();
+		checkFailure();
+	}
+
+	/**
+	 * Append raw html at the current position, the caller escapes it.
+	 * Failures are reported by the next {@link #nextPart()}.
+	 */
+	@Override
+	public Appendable append(CharSequence html) {
+		return append(html, 0, html.length());
+	}
+
+	@Override
+	public Appendable append(CharSequence html, int start, int end) {
+		flushRow();
+		buffer.append(html, start, end);
+		maybeFlush();
+		return this;
+	}
+
+	@Override
+	public Appendable append(char c) {
+		flushRow();
+		buffer.append(c);
+		maybeFlush();
+		return this;
+	}
+
+	@Override
+	public HTMLNode addRow() {
+		HTMLNode row = new HTMLNode("tr");
+		addRow(row);
+		return row;
+	}
+
+	@Override
+	public void addRow(HTMLNode row) {
+		flushRow();
+		pendingRow = row;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return failure != null || closed != null;
+	}
+
+	private void flushRow() {
+		if (pendingRow == null) {
+			return;
+		}
+		pendingRow.generate(buffer);
+		pendingRow = null;
+		maybeFlush();
+	}
+
+	private void maybeFlush() {
+		if (buffer.length() >= FLUSH_SIZE) {
+			flush();
+		}
+	}
+
+	@Override
+	public void flush() {
+		flushRow();
+		if (buffer.length() == 0) {
+			return;
+		}
+		if (isClosed()) {
+			buffer.setLength(0);
+			return;
+		}
+		try {
+			ctx.writeData(buffer.toString().getBytes(UTF8));
+		} catch (ToadletContextClosedException e) {
+			Logger.normal(this, "Client went away while streaming a page");
+			closed = e;
+		} catch (IOException e) {
+			failure = e;
+		}
+		buffer.setLength(0);
+	}
+
+	private void checkFailure() throws ToadletContextClosedException, IOException {
+		if (closed != null) {
+			throw closed;
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}